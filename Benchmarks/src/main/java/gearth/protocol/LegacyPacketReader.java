@@ -0,0 +1,65 @@
+package gearth.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The primitive readers of HPacket as they were before they stopped allocating,
+ * kept as the baseline of RoomPacketBenchmark
+ */
+class LegacyPacketReader {
+
+    private final byte[] packetInBytes;
+    private int readIndex = 6;
+
+    LegacyPacketReader(byte[] packet) {
+        this.packetInBytes = packet;
+    }
+
+    void resetReadIndex() {
+        readIndex = 6;
+    }
+
+    byte readByte(int index)	{
+        return packetInBytes[index];
+    }
+
+    boolean readBoolean() {
+        return packetInBytes[readIndex++] != 0;
+    }
+
+    short readShort()	{
+        byte[] btarray = new byte[]{packetInBytes[readIndex], packetInBytes[readIndex + 1]};
+        readIndex +=2;
+        return java.nio.ByteBuffer.wrap(btarray).getShort();
+    }
+
+    int readUshort(int index) {
+        byte[] btarray = new byte[]{0, 0, packetInBytes[index], packetInBytes[index + 1]};
+        return java.nio.ByteBuffer.wrap(btarray).getInt();
+    }
+
+    int readInteger(){
+        byte[] btarray = new byte[]{packetInBytes[readIndex], packetInBytes[readIndex + 1], packetInBytes[readIndex + 2], packetInBytes[readIndex + 3]};
+        readIndex +=4;
+        return java.nio.ByteBuffer.wrap(btarray).getInt();
+    }
+
+    String readString() {
+        String res = readString(readIndex);
+        readIndex += (2 + res.length());
+        return res;
+    }
+
+    String readString(int index)	{
+        int length = readUshort(index);
+        index+=2;
+
+        return readString(index, length);
+    }
+
+    private String readString(int index, int length) {
+        byte[] x = new byte[length];
+        for (int i = 0; i < x.length; i++)	{ x[i] = readByte(index); index++;	}
+        return new String(x, StandardCharsets.ISO_8859_1);
+    }
+}
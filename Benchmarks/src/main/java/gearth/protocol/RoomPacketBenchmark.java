@@ -0,0 +1,266 @@
+package gearth.protocol;
+
+import gearth.extensions.parsers.HEntity;
+import gearth.extensions.parsers.HFloorItem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the packets of a room load (floor items and entities) with the primitive readers of HPacket.
+ *
+ * floorItems and entities run the actual parsers. entityFields and legacyEntityFields read the same fields
+ * as HEntity does, with HPacket and with the readers HPacket had before (LegacyPacketReader).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RoomPacketBenchmark {
+
+    @Param({"50", "500"})
+    public int roomSize;
+
+    private HPacket floorItemsPacket;
+    private HPacket entitiesPacket;
+    private LegacyPacketReader legacyEntitiesReader;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        floorItemsPacket = buildFloorItems(random, roomSize * 4);
+        entitiesPacket = buildEntities(random, roomSize);
+        legacyEntitiesReader = new LegacyPacketReader(entitiesPacket.toBytes());
+    }
+
+    private static String randomString(Random random, int minLength, int maxLength) {
+        char[] chars = new char[minLength + random.nextInt(maxLength - minLength + 1)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    private static HPacket buildFloorItems(Random random, int amount) {
+        HPacket packet = new HPacket(1778);
+        int owners = 1 + amount / 20;
+        packet.appendInt(owners);
+        for (int i = 0; i < owners; i++) {
+            packet.appendInt(1000 + i);
+            packet.appendString(randomString(random, 3, 15));
+        }
+
+        packet.appendInt(amount);
+        for (int i = 0; i < amount; i++) {
+            packet.appendInt(i);
+            packet.appendInt(random.nextInt(5000));
+            packet.appendInt(random.nextInt(64));
+            packet.appendInt(random.nextInt(64));
+            packet.appendInt(random.nextInt(8));
+            packet.appendString(String.valueOf(random.nextInt(20) * 0.25));
+            packet.appendString("");
+            packet.appendInt(-1);
+
+            // legacy, map, string array and int array stuff data
+            int category = new int[] {0, 1, 2, 5}[random.nextInt(4)];
+            packet.appendInt(category);
+            if (category == 0) {
+                packet.appendString(String.valueOf(random.nextInt(4)));
+            }
+            else {
+                int count = random.nextInt(4);
+                packet.appendInt(count);
+                for (int j = 0; j < count; j++) {
+                    if (category == 5) {
+                        packet.appendInt(random.nextInt());
+                    }
+                    else {
+                        packet.appendString(randomString(random, 1, 10));
+                        if (category == 1) {
+                            packet.appendString(randomString(random, 1, 20));
+                        }
+                    }
+                }
+            }
+
+            packet.appendInt(-1);
+            packet.appendInt(random.nextInt(3));
+            packet.appendInt(1000 + random.nextInt(owners));
+        }
+        return packet;
+    }
+
+    private static HPacket buildEntities(Random random, int amount) {
+        HPacket packet = new HPacket(374);
+        packet.appendInt(amount);
+        for (int i = 0; i < amount; i++) {
+            // mostly users, some pets and bots
+            int type = random.nextInt(10) < 8 ? 1 : (random.nextBoolean() ? 2 : 4);
+
+            packet.appendInt(i);
+            packet.appendString(randomString(random, 3, 15));
+            packet.appendString(randomString(random, 0, 38));
+            packet.appendString(randomString(random, 60, 120));
+            packet.appendInt(i);
+            packet.appendInt(random.nextInt(64));
+            packet.appendInt(random.nextInt(64));
+            packet.appendString("0.0");
+            packet.appendInt(random.nextInt(8));
+            packet.appendInt(type);
+
+            if (type == 1) {
+                packet.appendString(random.nextBoolean() ? "M" : "F");
+                packet.appendInt(-1);
+                packet.appendInt(-1);
+                packet.appendString("");
+                packet.appendString("");
+                packet.appendInt(random.nextInt(100));
+                packet.appendBoolean(false);
+            }
+            else if (type == 2) {
+                packet.appendInt(random.nextInt(30));
+                packet.appendInt(1000 + random.nextInt(100));
+                packet.appendString(randomString(random, 3, 15));
+                packet.appendInt(random.nextInt(10));
+                for (int j = 0; j < 6; j++) {
+                    packet.appendBoolean(random.nextBoolean());
+                }
+                packet.appendInt(random.nextInt(20));
+                packet.appendString("");
+            }
+            else {
+                packet.appendString(random.nextBoolean() ? "M" : "F");
+                packet.appendInt(1000 + random.nextInt(100));
+                packet.appendString(randomString(random, 3, 15));
+                int skills = random.nextInt(8);
+                packet.appendInt(skills);
+                for (int j = 0; j < skills; j++) {
+                    packet.appendShort((short) random.nextInt(10));
+                }
+            }
+        }
+        return packet;
+    }
+
+    @Benchmark
+    public HFloorItem[] floorItems() {
+        floorItemsPacket.resetReadIndex();
+        return HFloorItem.parse(floorItemsPacket);
+    }
+
+    @Benchmark
+    public HEntity[] entities() {
+        entitiesPacket.resetReadIndex();
+        return HEntity.parse(entitiesPacket);
+    }
+
+    @Benchmark
+    public void entityFields(Blackhole blackhole) {
+        HPacket packet = entitiesPacket;
+        packet.resetReadIndex();
+
+        for (int i = packet.readInteger(); i > 0; i--) {
+            blackhole.consume(packet.readInteger());
+            blackhole.consume(packet.readString());
+            blackhole.consume(packet.readString());
+            blackhole.consume(packet.readString());
+            blackhole.consume(packet.readInteger());
+            blackhole.consume(packet.readInteger());
+            blackhole.consume(packet.readInteger());
+            blackhole.consume(packet.readString());
+            blackhole.consume(packet.readInteger());
+            int type = packet.readInteger();
+
+            if (type == 1) {
+                blackhole.consume(packet.readString());
+                blackhole.consume(packet.readInteger());
+                blackhole.consume(packet.readInteger());
+                blackhole.consume(packet.readString());
+                blackhole.consume(packet.readString());
+                blackhole.consume(packet.readInteger());
+                blackhole.consume(packet.readBoolean());
+            }
+            else if (type == 2) {
+                blackhole.consume(packet.readInteger());
+                blackhole.consume(packet.readInteger());
+                blackhole.consume(packet.readString());
+                blackhole.consume(packet.readInteger());
+                for (int j = 0; j < 6; j++) {
+                    blackhole.consume(packet.readBoolean());
+                }
+                blackhole.consume(packet.readInteger());
+                blackhole.consume(packet.readString());
+            }
+            else {
+                blackhole.consume(packet.readString());
+                blackhole.consume(packet.readInteger());
+                blackhole.consume(packet.readString());
+                for (int j = packet.readInteger(); j > 0; j--) {
+                    blackhole.consume(packet.readShort());
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void legacyEntityFields(Blackhole blackhole) {
+        LegacyPacketReader packet = legacyEntitiesReader;
+        packet.resetReadIndex();
+
+        for (int i = packet.readInteger(); i > 0; i--) {
+            blackhole.consume(packet.readInteger());
+            blackhole.consume(packet.readString());
+            blackhole.consume(packet.readString());
+            blackhole.consume(packet.readString());
+            blackhole.consume(packet.readInteger());
+            blackhole.consume(packet.readInteger());
+            blackhole.consume(packet.readInteger());
+            blackhole.consume(packet.readString());
+            blackhole.consume(packet.readInteger());
+            int type = packet.readInteger();
+
+            if (type == 1) {
+                blackhole.consume(packet.readString());
+                blackhole.consume(packet.readInteger());
+                blackhole.consume(packet.readInteger());
+                blackhole.consume(packet.readString());
+                blackhole.consume(packet.readString());
+                blackhole.consume(packet.readInteger());
+                blackhole.consume(packet.readBoolean());
+            }
+            else if (type == 2) {
+                blackhole.consume(packet.readInteger());
+                blackhole.consume(packet.readInteger());
+                blackhole.consume(packet.readString());
+                blackhole.consume(packet.readInteger());
+                for (int j = 0; j < 6; j++) {
+                    blackhole.consume(packet.readBoolean());
+                }
+                blackhole.consume(packet.readInteger());
+                blackhole.consume(packet.readString());
+            }
+            else {
+                blackhole.consume(packet.readString());
+                blackhole.consume(packet.readInteger());
+                blackhole.consume(packet.readString());
+                for (int j = packet.readInteger(); j > 0; j--) {
+                    blackhole.consume(packet.readShort());
+                }
+            }
+        }
+    }
+}
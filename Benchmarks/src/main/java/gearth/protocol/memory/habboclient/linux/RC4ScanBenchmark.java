@@ -0,0 +1,124 @@
+package gearth.protocol.memory.habboclient.linux;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scanning a synthetic heap with planted RC4 tables, the scanner that skips padded ints in bulk (SWAR, two ints
+ * per long read) against the scalar window over every 4th byte it replaced (ScalarRC4TableScanner).
+ *
+ * The heap is fed in chunks through a reused buffer like LinuxHabboClient does, only the scanning is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Benchmark)
+public class RC4ScanBenchmark {
+
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int PAGE_SIZE = 4096;
+
+    @Param({"256"})
+    public int heapMegabytes;
+
+    @Param({"8"})
+    public int plantedTables;
+
+    private byte[] heap;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        heap = new byte[heapMegabytes << 20];
+        random.nextBytes(heap);
+
+        // every page looks like a different kind of heap data
+        for (int page = 0; page < heap.length; page += PAGE_SIZE) {
+            int kind = random.nextInt(4);
+            for (int i = page; i < page + PAGE_SIZE; i += 4) {
+                if (kind == 0) {
+                    // small ints, the padding is zero but the values repeat
+                    heap[i] = (byte) random.nextInt(8);
+                    heap[i + 1] = heap[i + 2] = heap[i + 3] = 0;
+                }
+                else if (kind == 1) {
+                    // zeroed memory
+                    heap[i] = heap[i + 1] = heap[i + 2] = heap[i + 3] = 0;
+                }
+                else if (kind == 2 && (i & 4) == 0) {
+                    // pointers, the high halves are zero
+                    heap[i + 2] = heap[i + 3] = 0;
+                }
+                // kind 3 stays random
+            }
+        }
+
+        for (int t = 0; t < plantedTables; t++) {
+            int at = 4 * random.nextInt(heap.length / 4 - 256);
+            int[] table = new int[256];
+            for (int v = 0; v < 256; v++) {
+                table[v] = v;
+            }
+            for (int v = 255; v > 0; v--) {
+                int swap = random.nextInt(v + 1);
+                int tmp = table[v];
+                table[v] = table[swap];
+                table[swap] = tmp;
+            }
+            for (int v = 0; v < 256; v++) {
+                heap[at + 4 * v] = (byte) table[v];
+                heap[at + 4 * v + 1] = heap[at + 4 * v + 2] = heap[at + 4 * v + 3] = 0;
+            }
+        }
+    }
+
+    @Benchmark
+    public List<LinuxMemorySnippet> swar() {
+        List<LinuxMemorySnippet> found = new ArrayList<>();
+        LinuxHabboClient.RC4TableScanner scanner = new LinuxHabboClient.RC4TableScanner(0, found);
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int position = 0; position < heap.length; position += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, heap.length - position);
+            chunk.clear();
+            chunk.put(heap, position, length);
+            scanner.scan(chunk, length);
+        }
+        scanner.finish();
+        return found;
+    }
+
+    @Benchmark
+    public List<LinuxMemorySnippet> scalar() {
+        List<LinuxMemorySnippet> found = new ArrayList<>();
+        ScalarRC4TableScanner scanner = new ScalarRC4TableScanner(0, found);
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+
+        for (int position = 0; position < heap.length; position += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, heap.length - position);
+            chunk.clear();
+            chunk.put(heap, position, length);
+            scanner.scan(chunk.array(), length);
+        }
+        scanner.finish();
+        return found;
+    }
+}
@@ -0,0 +1,86 @@
+package gearth.protocol.memory.habboclient.linux;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * LinuxHabboClient.RC4TableScanner as it was before padding was checked while scanning:
+ * the distinctness window runs over every 4th byte, the padding is only checked later on the snippets.
+ * Kept as the baseline of RC4ScanBenchmark.
+ */
+class ScalarRC4TableScanner {
+    private static final int OFFSET = 4;
+
+    private final long regionStart;
+    private final List<LinuxMemorySnippet> found;
+
+    private int maskCount = 0;
+    private final int[] nToMap = new int[256];
+    private final int[] removeMap = new int[256];
+
+    private long matchStart = -1;
+    private long matchEnd = -1;
+    private long scanned = 0; // offset in the region of the next chunk
+
+    ScalarRC4TableScanner(long regionStart, List<LinuxMemorySnippet> found) {
+        this.regionStart = regionStart;
+        this.found = found;
+        Arrays.fill(nToMap, -1);
+        Arrays.fill(removeMap, -1);
+    }
+
+    // the chunk continues where the previous one ended
+    void scan(byte[] data, int length) {
+        // only every 4th byte (of the region) is looked at
+        int first = (int) ((OFFSET - scanned % OFFSET) % OFFSET);
+
+        for (int j = first; j < length; j += OFFSET) {
+            long i = scanned + j;
+            int b = data[j] & 0xff;
+            int indInMap = (int) ((i / 4) % 256);
+
+            int deletedNumber = removeMap[indInMap];
+            if (deletedNumber != -1) {
+                nToMap[deletedNumber] = -1;
+                maskCount --;
+                removeMap[indInMap] = -1;
+            }
+
+            if (nToMap[b] == -1) {
+                maskCount ++;
+                removeMap[indInMap] = b;
+                nToMap[b] = indInMap;
+            }
+            else {
+                removeMap[nToMap[b]] = -1;
+                removeMap[indInMap] = b;
+                nToMap[b] = indInMap;
+            }
+
+            if (maskCount == 256) {
+                if (matchStart == -1) {
+                    matchStart = i - ((256 - 1) * OFFSET);
+                    matchEnd = i;
+                }
+
+                if (matchEnd < i - ((256 - 1) * OFFSET)) {
+                    addMatch();
+                    matchStart = i - ((256 - 1) * OFFSET);
+                }
+                matchEnd = i;
+            }
+        }
+
+        scanned += length;
+    }
+
+    void finish() {
+        if (matchStart != -1) {
+            addMatch();
+        }
+    }
+
+    private void addMatch() {
+        found.add(new LinuxMemorySnippet(regionStart + matchStart, new byte[(int) (matchEnd - matchStart + 4)]));
+    }
+}
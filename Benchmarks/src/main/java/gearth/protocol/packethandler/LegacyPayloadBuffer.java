@@ -0,0 +1,41 @@
+package gearth.protocol.packethandler;
+
+import gearth.protocol.HPacket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * PayloadBuffer as it was before the compacting buffer, kept as the baseline of PayloadBufferBenchmark
+ */
+class LegacyPayloadBuffer {
+
+    private byte[] buffer = new byte[0];
+
+    HPacket[] pushAndReceive(byte[] tcpData){
+        push(tcpData);
+        return receive();
+    }
+    void push(byte[] tcpData) {
+        buffer = buffer.length == 0 ? tcpData.clone() : combineByteArrays(buffer, tcpData);
+    }
+    HPacket[] receive() {
+        if (buffer.length < 6) return new HPacket[0];
+        HPacket total = new HPacket(buffer);
+
+        ArrayList<HPacket> all = new ArrayList<>();
+        while (total.getBytesLength() >= 4 && total.getBytesLength() - 4 >= total.length()){
+            all.add(new HPacket(Arrays.copyOfRange(buffer, 0, total.length() + 4)));
+            buffer = Arrays.copyOfRange(buffer, total.length() + 4, buffer.length);
+            total = new HPacket(buffer);
+        }
+        return all.toArray(new HPacket[all.size()]);
+    }
+
+    private byte[] combineByteArrays(byte[] arr1, byte[] arr2)	{
+        byte[] combined = new byte[arr1.length + arr2.length];
+        System.arraycopy(arr1,0,combined,0         ,arr1.length);
+        System.arraycopy(arr2,0,combined,arr1.length,arr2.length);
+        return combined;
+    }
+}
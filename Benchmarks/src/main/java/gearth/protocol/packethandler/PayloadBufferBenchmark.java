@@ -0,0 +1,91 @@
+package gearth.protocol.packethandler;
+
+import gearth.protocol.HPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting a stream into packets, PayloadBuffer against the copy-per-packet implementation it replaced.
+ *
+ * Every invocation pushes the same reads through a long-lived buffer, the reads are cut halfway through
+ * a packet so most reads leave a partial packet behind.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PayloadBufferBenchmark {
+
+    private static final int READS = 32;
+
+    @Param({"1", "16", "256"})
+    public int packetsPerRead;
+
+    @Param({"64", "4096"})
+    public int packetSize;
+
+    private byte[][] reads;
+    private PayloadBuffer payloadBuffer;
+    private LegacyPayloadBuffer legacyPayloadBuffer;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        byte[] stream = new byte[READS * packetsPerRead * packetSize];
+        random.nextBytes(stream);
+        for (int offset = 0; offset < stream.length; offset += packetSize) {
+            int length = packetSize - 4;
+            stream[offset] = (byte) (length >>> 24);
+            stream[offset + 1] = (byte) (length >>> 16);
+            stream[offset + 2] = (byte) (length >>> 8);
+            stream[offset + 3] = (byte) length;
+        }
+
+        // the first read is half a packet longer, so the others all start and end in the middle of a packet
+        int readSize = packetsPerRead * packetSize;
+        int firstReadSize = Math.min(stream.length, readSize + packetSize / 2);
+        reads = new byte[(stream.length - firstReadSize + readSize - 1) / readSize + 1][];
+        reads[0] = Arrays.copyOfRange(stream, 0, firstReadSize);
+        for (int i = 1; i < reads.length; i++) {
+            int from = firstReadSize + (i - 1) * readSize;
+            reads[i] = Arrays.copyOfRange(stream, from, Math.min(stream.length, from + readSize));
+        }
+
+        payloadBuffer = new PayloadBuffer();
+        legacyPayloadBuffer = new LegacyPayloadBuffer();
+    }
+
+    @Benchmark
+    public void payloadBuffer(Blackhole blackhole) {
+        for (byte[] read : reads) {
+            for (HPacket packet : payloadBuffer.pushAndReceive(read)) {
+                blackhole.consume(packet);
+            }
+        }
+    }
+
+    @Benchmark
+    public void legacyPayloadBuffer(Blackhole blackhole) {
+        for (byte[] read : reads) {
+            for (HPacket packet : legacyPayloadBuffer.pushAndReceive(read)) {
+                blackhole.consume(packet);
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package extensions.blockreplacepackets;
 import extensions.blockreplacepackets.rules.BlockReplaceRule;
 import extensions.blockreplacepackets.rules.RuleFactory;
 import gearth.extensions.Extension;
+import gearth.misc.packetrepresentation.StringReplacements;
 import gearth.protocol.HMessage;
 import gearth.protocol.HPacket;
 import gearth.ui.GEarthController;
@@ -48,6 +49,11 @@ public class BlockAndReplacePackets extends ExtensionForm {
 
     List<BlockReplaceRule> rules = new ArrayList<>();
 
+    // the rules for each direction, consecutive (sub)string replacements are merged into a single pass
+    // as long as the outcome is the same as applying them one after the other
+    private volatile List<Extension.MessageListener> incomingSteps = new ArrayList<>();
+    private volatile List<Extension.MessageListener> outgoingSteps = new ArrayList<>();
+
     public static void main(String[] args) {
         runExtensionForm(args, BlockAndReplacePackets.class);
     }
@@ -177,14 +183,89 @@ public class BlockAndReplacePackets extends ExtensionForm {
 
     @Override
     protected void initExtension() {
-        Extension.MessageListener messageListener = message -> {
-            for (BlockReplaceRule rule : rules) {
-                rule.appendRuleToMessage(message);
+        intercept(HMessage.Direction.TOSERVER, message -> {
+            for (Extension.MessageListener step : outgoingSteps) {
+                step.act(message);
+            }
+        });
+        intercept(HMessage.Direction.TOCLIENT, message -> {
+            for (Extension.MessageListener step : incomingSteps) {
+                step.act(message);
+            }
+        });
+    }
+
+    private void rebuildSteps() {
+        incomingSteps = buildSteps(BlockReplaceRule.Side.INCOMING);
+        outgoingSteps = buildSteps(BlockReplaceRule.Side.OUTGOING);
+    }
+
+    private List<Extension.MessageListener> buildSteps(BlockReplaceRule.Side side) {
+        List<Extension.MessageListener> steps = new ArrayList<>();
+        StringReplacements replacements = null;
+        List<BlockReplaceRule> pass = new ArrayList<>();
+
+        for (BlockReplaceRule rule : rules) {
+            boolean isString = rule.type() == BlockReplaceRule.Type.STRING;
+            if (!isString && rule.type() != BlockReplaceRule.Type.SUBSTRING) {
+                replacements = null;
+                steps.add(rule::appendRuleToMessage);
+                continue;
             }
-        };
 
-        intercept(HMessage.Direction.TOSERVER, messageListener);
-        intercept(HMessage.Direction.TOCLIENT, messageListener);
+            if (rule.side() != side && rule.side() != BlockReplaceRule.Side.ALL) {
+                continue;
+            }
+            if (replacements == null || dependsOn(rule, pass)) {
+                StringReplacements step = new StringReplacements();
+                steps.add(message -> message.getPacket().replaceStrings(step));
+                replacements = step;
+                pass.clear();
+            }
+            pass.add(rule);
+            if (isString) {
+                replacements.addString(rule.value(), rule.replacement());
+            }
+            else {
+                replacements.addSubstring(rule.value(), rule.replacement());
+            }
+        }
+
+        return steps;
+    }
+
+    // true if the rules before it in the pass could change what this rule matches, for example "foo" -> "bar"
+    // followed by "bar" -> "baz", or "abc" -> "x" followed by "cd" -> "y". Such a rule starts a new pass
+    private static boolean dependsOn(BlockReplaceRule rule, List<BlockReplaceRule> pass) {
+        for (BlockReplaceRule earlier : pass) {
+            if (earlier.replacement().isEmpty() ||  // removing text can join what's around it into a match
+                    sharesCharacter(earlier.replacement(), rule.value()) ||
+                    canOverlap(earlier.value(), rule.value())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean sharesCharacter(String a, String b) {
+        for (int i = 0; i < a.length(); i++) {
+            if (b.indexOf(a.charAt(i)) != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean canOverlap(String a, String b) {
+        if (a.contains(b) || b.contains(a)) {
+            return true;
+        }
+        for (int k = 1; k < Math.min(a.length(), b.length()); k++) {
+            if (a.endsWith(b.substring(0, k)) || b.endsWith(a.substring(0, k))) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
@@ -208,7 +289,11 @@ public class BlockAndReplacePackets extends ExtensionForm {
     public void click_btnAddRule(ActionEvent actionEvent) {
         BlockReplaceRule rule = RuleFactory.getRule(cmb_type.getSelectionModel().getSelectedItem(), cmb_side.getSelectionModel().getSelectedItem(), txt_value.getText(), txt_replacement.getText());
         rules.add(rule);
-        rule.onDelete(observable -> rules.remove(rule));
+        rule.onDelete(observable -> {
+            rules.remove(rule);
+            rebuildSteps();
+        });
+        rebuildSteps();
         new RuleContainer(rule, vbox);
 
 
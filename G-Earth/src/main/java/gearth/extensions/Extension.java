@@ -3,6 +3,7 @@ package gearth.extensions;
 import gearth.misc.listenerpattern.Observable;
 import gearth.protocol.HMessage;
 import gearth.protocol.HPacket;
+import gearth.services.extensionhandler.extensions.implementations.network.NetworkExtensionCodec;
 import gearth.services.extensionhandler.extensions.implementations.network.NetworkExtensionInfo;
 
 import java.io.*;
@@ -36,8 +37,15 @@ public abstract class Extension implements IExtension {
     private OutputStream out = null;
     private final Map<Integer, List<MessageListener>> incomingMessageListeners = new HashMap<>();
     private final Map<Integer, List<MessageListener>> outgoingMessageListeners = new HashMap<>();
+    private final Map<Integer, List<MessageListener>> incomingObserveListeners = new HashMap<>();
+    private final Map<Integer, List<MessageListener>> outgoingObserveListeners = new HashMap<>();
     private FlagsCheckListener flagRequestCallback = null;
 
+    private volatile int protocolVersion = 0;
+
+    private final Object subscriptionLock = new Object();
+    private boolean subscriptionsPublished = false;
+
     private String getArgument(String[] args, String... arg) {
         for (int i = 0; i < args.length - 1; i++) {
             for (String str : arg) {
@@ -115,13 +123,17 @@ public abstract class Extension implements IExtension {
                     amountRead += dIn.read(headerandbody, 4 + amountRead, Math.min(dIn.available(), length - amountRead));
                 }
 
-                HPacket packet = new HPacket(headerandbody);
+                HPacket packet = HPacket.wrap(headerandbody);
                 packet.fixLength();
 
 
                 if (packet.headerId() == NetworkExtensionInfo.OUTGOING_MESSAGES_IDS.INFOREQUEST) {
                     ExtensionInfo info = getInfoAnnotations();
 
+                    // older G-Earth versions don't send their protocol version
+                    int gEarthProtocolVersion = packet.isEOF() == 0 ? packet.readInteger() : 0;
+                    protocolVersion = Math.min(gEarthProtocolVersion, NetworkExtensionInfo.PROTOCOL_VERSION);
+
                     HPacket response = new HPacket(NetworkExtensionInfo.INCOMING_MESSAGES_IDS.EXTENSIONINFO);
                     response.appendString(info.Title())
                             .appendString(info.Author())
@@ -132,8 +144,11 @@ public abstract class Extension implements IExtension {
                             .appendString(file == null ? "": file)
                             .appendString(cookie == null ? "" : cookie)
                             .appendBoolean(canLeave)
-                            .appendBoolean(canDelete);
+                            .appendBoolean(canDelete)
+                            .appendBoolean(true) // only intercept subscribed packets
+                            .appendInt(NetworkExtensionInfo.PROTOCOL_VERSION);
                     writeToStream(response.toBytes());
+                    publishSubscriptions();
                 }
                 else if (packet.headerId() == NetworkExtensionInfo.OUTGOING_MESSAGES_IDS.CONNECTIONSTART) {
                     String host = packet.readString();
@@ -166,44 +181,49 @@ public abstract class Extension implements IExtension {
                     onClick();
                 }
                 else if (packet.headerId() == NetworkExtensionInfo.OUTGOING_MESSAGES_IDS.PACKETINTERCEPT) {
-                    String stringifiedMessage = packet.readLongString();
-                    HMessage habboMessage = new HMessage(stringifiedMessage);
-                    HPacket habboPacket = habboMessage.getPacket();
-
-                    Map<Integer, List<MessageListener>> listeners =
-                            habboMessage.getDestination() == HMessage.Direction.TOCLIENT ?
-                                    incomingMessageListeners :
-                                    outgoingMessageListeners;
-
-                    List<MessageListener> correctListeners = new ArrayList<>();
-
-                    synchronized (incomingMessageListeners) {
-                        synchronized (outgoingMessageListeners) {
-                            if (listeners.containsKey(-1)) { // registered on all packets
-                                for (int i = listeners.get(-1).size() - 1; i >= 0; i--) {
-                                    correctListeners.add(listeners.get(-1).get(i));
-                                }
-                            }
-
-                            if (listeners.containsKey(habboPacket.headerId())) {
-                                for (int i = listeners.get(habboPacket.headerId()).size() - 1; i >= 0; i--) {
-                                    correctListeners.add(listeners.get(habboPacket.headerId()).get(i));
-                                }
-                            }
-                        }
+                    HMessage habboMessage = readHMessage(packet);
+
+                    boolean edited = interceptMessage(habboMessage);
+
+                    if (!edited && protocolVersion >= 2) {
+                        writeToStream(NetworkExtensionCodec.encodeUnchanged(
+                                NetworkExtensionInfo.INCOMING_MESSAGES_IDS.UNCHANGEDPACKET, habboMessage));
+                    }
+                    else {
+                        writeHMessage(NetworkExtensionInfo.INCOMING_MESSAGES_IDS.MANIPULATEDPACKET, habboMessage);
                     }
 
-                    for(MessageListener listener : correctListeners) {
-                        habboMessage.getPacket().resetReadIndex();
-                        listener.act(habboMessage);
+                }
+                else if (packet.headerId() == NetworkExtensionInfo.OUTGOING_MESSAGES_IDS.PACKETINTERCEPTBATCH) {
+                    int count = packet.readInteger();
+                    List<HMessage> habboMessages = new ArrayList<>(count);
+                    boolean[] unchanged = new boolean[count];
+
+                    for (int i = 0; i < count; i++) {
+                        int frameLength = packet.readInteger();
+                        HMessage habboMessage = NetworkExtensionCodec.decode(packet, frameLength);
+                        unchanged[i] = !interceptMessage(habboMessage);
+                        habboMessages.add(habboMessage);
                     }
-                    habboMessage.getPacket().resetReadIndex();
 
-                    HPacket response = new HPacket(NetworkExtensionInfo.INCOMING_MESSAGES_IDS.MANIPULATEDPACKET);
-                    response.appendLongString(habboMessage.stringify());
+                    writeToStream(NetworkExtensionCodec.encodeBatch(
+                            NetworkExtensionInfo.INCOMING_MESSAGES_IDS.MANIPULATEDPACKETBATCH, habboMessages, unchanged));
 
-                    writeToStream(response.toBytes());
+                }
+                else if (packet.headerId() == NetworkExtensionInfo.OUTGOING_MESSAGES_IDS.PACKETOBSERVE) {
+                    boolean interceptSkipped = protocolVersion >= 1 && NetworkExtensionCodec.isInterceptSkipped(packet);
+                    HMessage habboMessage = readHMessage(packet);
+                    if (protocolVersion == 0) {
+                        interceptSkipped = packet.isEOF() == 0 && packet.readBoolean();
+                    }
+
+                    notifyListeners(incomingObserveListeners, outgoingObserveListeners, habboMessage);
 
+                    // intercepted packets come in here instead once G-Earth made this extension observe-only,
+                    // the listeners still see them but their edits are ignored, see resumeIntercepting()
+                    if (interceptSkipped) {
+                        interceptMessage(habboMessage);
+                    }
                 }
             }
 
@@ -222,6 +242,131 @@ public abstract class Extension implements IExtension {
         }
     }
 
+    // returns true if one of the listeners edited the packet
+    private boolean interceptMessage(HMessage habboMessage) {
+        // track edits made by this extension only
+        HPacket habboPacket = habboMessage.getPacket();
+        boolean wasEdited = habboPacket.isReplaced();
+        habboPacket.overrideEditedField(false);
+
+        notifyListeners(incomingMessageListeners, outgoingMessageListeners, habboMessage);
+
+        boolean edited = habboPacket.isReplaced();
+        habboPacket.overrideEditedField(wasEdited || edited);
+        return edited;
+    }
+
+    private HMessage readHMessage(HPacket packet) {
+        if (protocolVersion >= 1) {
+            return NetworkExtensionCodec.decode(packet);
+        }
+        return new HMessage(packet.readLongString());
+    }
+
+    private void writeHMessage(int headerId, HMessage habboMessage) throws IOException {
+        if (protocolVersion >= 1) {
+            writeToStream(NetworkExtensionCodec.encode(headerId, habboMessage));
+        }
+        else {
+            HPacket response = new HPacket(headerId);
+            response.appendLongString(habboMessage.stringify());
+            writeToStream(response.toBytes());
+        }
+    }
+
+    private void notifyListeners(Map<Integer, List<MessageListener>> incomingListeners,
+                                 Map<Integer, List<MessageListener>> outgoingListeners,
+                                 HMessage habboMessage) {
+        HPacket habboPacket = habboMessage.getPacket();
+
+        Map<Integer, List<MessageListener>> listeners =
+                habboMessage.getDestination() == HMessage.Direction.TOCLIENT ?
+                        incomingListeners :
+                        outgoingListeners;
+
+        List<MessageListener> correctListeners = new ArrayList<>();
+
+        synchronized (listeners) {
+            if (listeners.containsKey(-1)) { // registered on all packets
+                for (int i = listeners.get(-1).size() - 1; i >= 0; i--) {
+                    correctListeners.add(listeners.get(-1).get(i));
+                }
+            }
+
+            if (listeners.containsKey(habboPacket.headerId())) {
+                for (int i = listeners.get(habboPacket.headerId()).size() - 1; i >= 0; i--) {
+                    correctListeners.add(listeners.get(habboPacket.headerId()).get(i));
+                }
+            }
+        }
+
+        for(MessageListener listener : correctListeners) {
+            habboPacket.resetReadIndex();
+            listener.act(habboMessage);
+        }
+        habboPacket.resetReadIndex();
+    }
+
+    // tells G-Earth about every (direction, headerId) pair registered so far
+    private void publishSubscriptions() throws IOException {
+        synchronized (subscriptionLock) {
+            sendSubscriptions(HMessage.Direction.TOCLIENT, incomingMessageListeners, false);
+            sendSubscriptions(HMessage.Direction.TOSERVER, outgoingMessageListeners, false);
+            sendSubscriptions(HMessage.Direction.TOCLIENT, incomingObserveListeners, true);
+            sendSubscriptions(HMessage.Direction.TOSERVER, outgoingObserveListeners, true);
+            subscriptionsPublished = true;
+        }
+    }
+
+    /**
+     * An extension that doesn't respond to intercepted packets in time too often is made observe-only by G-Earth:
+     * intercept listeners keep getting the packets, but can't edit or block them anymore.
+     * This asks G-Earth to wait for the intercept listeners again.
+     */
+    public void resumeIntercepting() {
+        synchronized (subscriptionLock) {
+            if (subscriptionsPublished) {
+                try {
+                    sendSubscriptions(HMessage.Direction.TOCLIENT, incomingMessageListeners, false);
+                    sendSubscriptions(HMessage.Direction.TOSERVER, outgoingMessageListeners, false);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void sendSubscriptions(HMessage.Direction direction, Map<Integer, List<MessageListener>> listeners, boolean observeOnly) throws IOException {
+        List<Integer> headerIds;
+        synchronized (listeners) {
+            headerIds = new ArrayList<>(listeners.keySet());
+        }
+
+        for (int headerId : headerIds) {
+            sendSubscription(direction, headerId, observeOnly);
+        }
+    }
+
+    private void publishSubscription(HMessage.Direction direction, int headerId, boolean observeOnly) {
+        synchronized (subscriptionLock) {
+            if (subscriptionsPublished) {
+                try {
+                    sendSubscription(direction, headerId, observeOnly);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void sendSubscription(HMessage.Direction direction, int headerId, boolean observeOnly) throws IOException {
+        HPacket packet = new HPacket(NetworkExtensionInfo.INCOMING_MESSAGES_IDS.INTERCEPTSUBSCRIPTION);
+        packet.appendByte(direction == HMessage.Direction.TOCLIENT ? (byte)0 : (byte)1);
+        packet.appendInt(headerId);
+        packet.appendBoolean(observeOnly);
+        writeToStream(packet.toBytes());
+    }
+
     private void writeToStream(byte[] bytes) throws IOException {
         synchronized (this) {
             out.write(bytes);
@@ -249,7 +394,7 @@ public abstract class Extension implements IExtension {
         HPacket packet1 = new HPacket(NetworkExtensionInfo.INCOMING_MESSAGES_IDS.SENDMESSAGE);
         packet1.appendByte(direction == HMessage.Direction.TOCLIENT ? (byte)0 : (byte)1);
         packet1.appendInt(packet.getBytesLength());
-        packet1.appendBytes(packet.toBytes());
+        packet1.appendBytes(packet.toSharedBytes());
         try {
             writeToStream(packet1.toBytes());
             return true;
@@ -265,28 +410,58 @@ public abstract class Extension implements IExtension {
      * @param messageListener the callback
      */
     public void intercept(HMessage.Direction direction, int headerId, MessageListener messageListener) {
-        Map<Integer, List<MessageListener>> listeners =
-                direction == HMessage.Direction.TOCLIENT ?
-                        incomingMessageListeners :
-                        outgoingMessageListeners;
+        register(direction, headerId, messageListener, false);
+    }
 
+    /**
+     * Register a listener on all packets
+     * @param direction ToClient or ToServer
+     * @param messageListener the callback
+     */
+    public void intercept(HMessage.Direction direction, MessageListener messageListener) {
+        intercept(direction, -1, messageListener);
+    }
+
+    /**
+     * Register an observe-only listener on a specific packet Type, G-Earth won't wait for it.
+     * The packet has already been sent when the listener is called, so blocking or replacing it has no effect
+     * The listener gets the packet as it was sent, packets that got blocked are delivered too (with isBlocked() set)
+     * @param direction ToClient or ToServer
+     * @param headerId the packet header ID
+     * @param messageListener the callback
+     */
+    public void observe(HMessage.Direction direction, int headerId, MessageListener messageListener) {
+        register(direction, headerId, messageListener, true);
+    }
+
+    /**
+     * Register an observe-only listener on all packets
+     * @param direction ToClient or ToServer
+     * @param messageListener the callback
+     */
+    public void observe(HMessage.Direction direction, MessageListener messageListener) {
+        observe(direction, -1, messageListener);
+    }
+
+    private void register(HMessage.Direction direction, int headerId, MessageListener messageListener, boolean observeOnly) {
+        Map<Integer, List<MessageListener>> listeners = observeOnly ?
+                (direction == HMessage.Direction.TOCLIENT ? incomingObserveListeners : outgoingObserveListeners) :
+                (direction == HMessage.Direction.TOCLIENT ? incomingMessageListeners : outgoingMessageListeners);
+
+        boolean isNewSubscription = false;
         synchronized (listeners) {
             if (!listeners.containsKey(headerId)) {
                 listeners.put(headerId, new ArrayList<>());
+                isNewSubscription = true;
             }
         }
 
 
         listeners.get(headerId).add(messageListener);
-    }
 
-    /**
-     * Register a listener on all packets
-     * @param direction ToClient or ToServer
-     * @param messageListener the callback
-     */
-    public void intercept(HMessage.Direction direction, MessageListener messageListener) {
-        intercept(direction, -1, messageListener);
+        if (isNewSubscription) {
+            publishSubscription(direction, headerId, observeOnly);
+        }
     }
 
     /**
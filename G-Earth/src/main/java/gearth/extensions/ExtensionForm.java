@@ -37,6 +37,12 @@ public abstract class ExtensionForm implements IExtension {
     public void intercept(HMessage.Direction direction, int headerId, Extension.MessageListener messageListener){
         extension.intercept(direction, headerId, messageListener);
     }
+    public void observe(HMessage.Direction direction, Extension.MessageListener messageListener) {
+        extension.observe(direction, messageListener);
+    }
+    public void observe(HMessage.Direction direction, int headerId, Extension.MessageListener messageListener){
+        extension.observe(direction, headerId, messageListener);
+    }
     public boolean sendToServer(HPacket packet){
         return extension.sendToServer(packet);
     }
@@ -12,6 +12,8 @@ public interface IExtension {
     boolean sendToServer(HPacket packet);
     void intercept(HMessage.Direction direction, int headerId, Extension.MessageListener messageListener);
     void intercept(HMessage.Direction direction, Extension.MessageListener messageListener);
+    void observe(HMessage.Direction direction, int headerId, Extension.MessageListener messageListener);
+    void observe(HMessage.Direction direction, Extension.MessageListener messageListener);
     boolean requestFlags(Extension.FlagsCheckListener flagRequestCallback);
     void writeToConsole(String colorClass, String s);
     void writeToConsole(String s);
@@ -0,0 +1,121 @@
+package gearth.misc;
+
+import gearth.Main;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the long-running threads of G-Earth (proxy readers, extension connections, packet senders, ..)
+ *
+ * Started with --virtual-threads on a JVM that supports them (Java 21+), these threads will be virtual threads,
+ * which don't reserve a native stack each. Otherwise (or on older JVMs) they're regular platform threads.
+ * The builder API is looked up with reflection since G-Earth is still compiled for Java 8.
+ */
+public class GEarthThreads {
+
+    public static final String VIRTUAL_THREADS_FLAG = "--virtual-threads";
+
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_UNSTARTED;
+    static {
+        Method ofVirtual = null, builderName = null, builderUnstarted = null;
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builderClass.getMethod("name", String.class);
+            builderUnstarted = builderClass.getMethod("unstarted", Runnable.class);
+        } catch (ClassNotFoundException | NoSuchMethodException ignored) {
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_UNSTARTED = builderUnstarted;
+    }
+
+    private static final AtomicInteger liveThreads = new AtomicInteger(0);
+    private static final AtomicInteger liveVirtualThreads = new AtomicInteger(0);
+
+    private static volatile Boolean useVirtualThreads = null;
+
+    public static boolean isVirtualThreadsSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    public static boolean isUsingVirtualThreads() {
+        if (useVirtualThreads == null) {
+            useVirtualThreads = isVirtualThreadsSupported() && Main.args != null && Main.hasFlag(VIRTUAL_THREADS_FLAG);
+        }
+        return useVirtualThreads;
+    }
+
+    /**
+     * Amount of threads created through this class that are still running (virtual ones included)
+     */
+    public static int getLiveThreadCount() {
+        return liveThreads.get();
+    }
+
+    public static int getLiveVirtualThreadCount() {
+        return liveVirtualThreads.get();
+    }
+
+    public static Thread start(String name, Runnable task) {
+        Thread thread = create(name, task);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Creates an unstarted thread, it's not possible to make a virtual thread non-daemon
+     */
+    public static Thread create(String name, Runnable task) {
+        if (isUsingVirtualThreads()) {
+            Thread thread = createVirtual(name, counted(task, true));
+            if (thread != null) {
+                return thread;
+            }
+        }
+        return new Thread(counted(task, false), name);
+    }
+
+    /**
+     * For executors, threads are named "name-1", "name-2", ..
+     */
+    public static ThreadFactory factory(String name, boolean daemon) {
+        AtomicInteger counter = new AtomicInteger(0);
+        return task -> {
+            Thread thread = create(name + "-" + counter.incrementAndGet(), task);
+            if (!thread.isDaemon()) {
+                thread.setDaemon(daemon);
+            }
+            return thread;
+        };
+    }
+
+    private static Thread createVirtual(String name, Runnable task) {
+        try {
+            Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+            return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
+            useVirtualThreads = false;
+            return null;
+        }
+    }
+
+    private static Runnable counted(Runnable task, boolean virtual) {
+        return () -> {
+            liveThreads.incrementAndGet();
+            if (virtual) liveVirtualThreads.incrementAndGet();
+            try {
+                task.run();
+            }
+            finally {
+                liveThreads.decrementAndGet();
+                if (virtual) liveVirtualThreads.decrementAndGet();
+            }
+        };
+    }
+}
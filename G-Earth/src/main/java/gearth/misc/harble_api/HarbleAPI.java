@@ -1,6 +1,7 @@
 package gearth.misc.harble_api;
 
 import gearth.misc.Cacher;
+import gearth.misc.packetrepresentation.PacketStructure;
 import gearth.protocol.HMessage;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -24,6 +25,8 @@ public class HarbleAPI {
         private String hash;
         private String name;
         private String structure;
+        private volatile PacketStructure compiledStructure = null;
+        private volatile boolean isStructureCompiled = false;
 
         //name can be NULL
         public HarbleMessage(HMessage.Direction destination, int headerId, String hash, String name, String structure) {
@@ -54,6 +57,19 @@ public class HarbleAPI {
             return structure;
         }
 
+        // compiled on first use, null if there's no valid structure
+        public PacketStructure getCompiledStructure() {
+            if (!isStructureCompiled) {
+                try {
+                    compiledStructure = structure == null ? null : PacketStructure.compile(structure);
+                } catch (IllegalArgumentException e) {
+                    compiledStructure = null;
+                }
+                isStructureCompiled = true;
+            }
+            return compiledStructure;
+        }
+
         public String toString() {
             String s = (headerId + ": " + "[" + hash + "][" + name + "][" + structure + "]");
             return s;
@@ -170,42 +170,11 @@ public class PacketStringUtils {
 
     // generates an expression for a packet from a packet structure (ex. "i(isi(b))iBd")
     public static String toExpressionFromGivenStructure(HPacket packet, String struct) {
-        int oldReadIndex = packet.getReadIndex();
-        packet.resetReadIndex();
-
-        StringBuilder builder = new StringBuilder();
-        builder.append("{l}{u:").append(packet.headerId()).append("}");
-
-        buildExpressionFromGivenStructure(packet, struct, 0, builder);
-        packet.setReadIndex(oldReadIndex);
-        return builder.toString();
-    }
-    private static void buildExpressionFromGivenStructure(HPacket p, String struct, int indexInGivenStruct, StringBuilder builder) {
-        int prevInt = 0;
-
-        while (indexInGivenStruct < struct.length()) {
-            char c = struct.charAt(indexInGivenStruct++);
-            if (c == '(') {
-                for (int i = 0; i < prevInt; i++) buildExpressionFromGivenStructure(p, struct, indexInGivenStruct, builder);
-                int skipping = 1;
-                while (skipping > 0) {
-                    char c2 = struct.charAt(indexInGivenStruct++);
-                    if (c2 == '(') skipping++;
-                    else if (c2 == ')') skipping--;
-                }
-            }
-            else if (c == 'i') builder.append("{i:").append(prevInt = p.readInteger()).append('}');
-            else if (c == 's') builder.append("{s:\"").append(
-                    new String(p.readString().getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8)
-                            .replace("\\", "\\\\")  // \ -> \\
-                            .replace("\"", "\\\"")  // " -> \"
-                            .replace("\r", "\\r")   // CR -> \r
-            ).append("\"}");
-            else if (c == 'd') builder.append("{d:").append(p.readDouble()).append('}');
-            else if (c == 'b') builder.append("{b:").append(p.readByte()).append('}');
-            else if (c == 'B') builder.append("{b:").append(p.readBoolean()).append('}');
-            else return;
+        String expression = PacketStructure.compile(struct).toExpression(packet);
+        if (expression == null) {
+            throw new ArrayIndexOutOfBoundsException("Packet doesn't fit structure " + struct);
         }
+        return expression;
     }
     public static String predictedExpression(HPacket packet) {
         StructurePredictor structurePredictor = new StructurePredictor(packet);
@@ -213,22 +182,12 @@ public class PacketStringUtils {
     }
 
     public static boolean structureEquals(HPacket packet, String struct) {
-        if (packet.isCorrupted()) return false;
-
-        int indexbuffer = packet.getReadIndex();
-        packet.resetReadIndex();
-
-        boolean result;
         try {
-            buildExpressionFromGivenStructure(packet, struct, 0, new StringBuilder());
-            result = packet.isEOF() == 1;
+            return PacketStructure.get(struct).matches(packet);
         }
-        catch (Exception e) {
-            result = false;
+        catch (IllegalArgumentException e) {
+            return false;
         }
-
-        packet.setReadIndex(indexbuffer);
-        return result;
     }
 
     public static void main(String[] args) throws InvalidPacketException {
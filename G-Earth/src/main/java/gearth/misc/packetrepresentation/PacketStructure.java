@@ -0,0 +1,291 @@
+package gearth.misc.packetrepresentation;
+
+import gearth.protocol.HPacket;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compiled packet structure (ex. "i(isi(b))iBd"), parse once and reuse for every packet.
+ *
+ * i = int, s = string, d = double, b = byte, B = boolean
+ * (...) = repeat the substructure, as many times as the last int before it
+ *
+ * Packets that don't fit the structure are reported with null or false, nothing is thrown.
+ */
+public class PacketStructure {
+
+    private static final char GROUP = '(';
+
+    // structures used with PacketStringUtils.structureEquals, kept small since anything can be passed there
+    private static final int MAX_CACHED = 256;
+    private static final Map<String, PacketStructure> cache = new ConcurrentHashMap<>();
+
+    /**
+     * @throws IllegalArgumentException if the parentheses don't match
+     */
+    public static PacketStructure compile(String structure) {
+        return new PacketStructure(structure);
+    }
+
+    /**
+     * Same as compile(), but reuses earlier compilations of the same structure
+     */
+    public static PacketStructure get(String structure) {
+        PacketStructure compiled = cache.get(structure);
+        if (compiled == null) {
+            compiled = compile(structure);
+            if (cache.size() >= MAX_CACHED) {
+                cache.clear();
+            }
+            cache.put(structure, compiled);
+        }
+        return compiled;
+    }
+
+
+    private final String structure;
+    private final Group root;
+
+    private PacketStructure(String structure) {
+        this.structure = structure;
+        this.root = parseGroup(structure, 0);
+    }
+
+    public String getStructure() {
+        return structure;
+    }
+
+    /**
+     * @return true if the packet consists of exactly this structure
+     */
+    public boolean matches(HPacket packet) {
+        return !packet.isCorrupted() && decode(packet, root, 6, null) == packet.getBytesLength();
+    }
+
+    /**
+     * Locates the fields of this structure in the packet, trailing bytes are ignored
+     * @return null if the packet is too short for this structure
+     */
+    public Fields readFields(HPacket packet) {
+        Fields fields = new Fields(packet);
+        int end = decode(packet, root, 6, fields);
+        if (end == -1) {
+            return null;
+        }
+        fields.end = end;
+        return fields;
+    }
+
+    /**
+     * @return the expression of the packet, or null if the packet is too short for this structure
+     */
+    public String toExpression(HPacket packet) {
+        Fields fields = readFields(packet);
+        if (fields == null) {
+            return null;
+        }
+
+        StringBuilder builder = new StringBuilder();
+        builder.append("{l}{u:").append(packet.headerId()).append("}");
+        for (int i = 0; i < fields.size(); i++) {
+            char type = fields.getType(i);
+            if (type == 'i') builder.append("{i:").append(fields.getInt(i)).append('}');
+            else if (type == 's') builder.append("{s:\"").append(
+                    fields.getUtf8String(i)
+                            .replace("\\", "\\\\")  // \ -> \\
+                            .replace("\"", "\\\"")  // " -> \"
+                            .replace("\r", "\\r")   // CR -> \r
+            ).append("\"}");
+            else if (type == 'd') builder.append("{d:").append(fields.getDouble(i)).append('}');
+            else if (type == 'b') builder.append("{b:").append(fields.getByte(i)).append('}');
+            else builder.append("{b:").append(fields.getBoolean(i)).append('}');
+        }
+        return builder.toString();
+    }
+
+
+    // returns the offset after the group, or -1 if the packet is too short
+    private static int decode(HPacket packet, Group group, int offset, Fields fields) {
+        int prevInt = 0;
+        int prevIntField = -1;
+
+        for (int e = 0; e < group.types.length; e++) {
+            char type = group.types[e];
+            if (type == GROUP) {
+                if (fields != null && prevIntField != -1) {
+                    fields.counts[prevIntField] = true;
+                }
+                for (int i = 0; i < prevInt; i++) {
+                    int next = decode(packet, group.groups[e], offset, fields);
+                    if (next == -1) {
+                        return -1;
+                    }
+                    if (next == offset) {
+                        break; // the group doesn't read anything, repeating it won't either
+                    }
+                    offset = next;
+                }
+                continue;
+            }
+
+            int size = fieldSize(packet, type, offset);
+            if (size == -1) {
+                return -1;
+            }
+            if (type == 'i') {
+                prevInt = packet.readInteger(offset);
+            }
+            if (fields != null) {
+                if (type == 'i') {
+                    prevIntField = fields.size;
+                }
+                fields.add(type, offset);
+            }
+            offset += size;
+        }
+
+        return offset;
+    }
+
+    private static int fieldSize(HPacket packet, char type, int offset) {
+        int available = packet.getBytesLength() - offset;
+        int size;
+        if (type == 'i') size = 4;
+        else if (type == 'd') size = 8;
+        else if (type == 's') size = available >= 2 ? 2 + packet.readUshort(offset) : 2;
+        else size = 1;
+
+        return size <= available ? size : -1;
+    }
+
+
+    // a sequence of fields and groups, groups repeat as many times as the last int before them
+    private static class Group {
+        private final char[] types;
+        private final Group[] groups;
+
+        private Group(char[] types, Group[] groups) {
+            this.types = types;
+            this.groups = groups;
+        }
+    }
+
+    // an unknown character or ")" ends the group, everything after it until the matching ")" is ignored
+    private static Group parseGroup(String structure, int index) {
+        StringBuilder types = new StringBuilder();
+        List<Group> groups = new ArrayList<>();
+
+        while (index < structure.length()) {
+            char c = structure.charAt(index++);
+            if (c == '(') {
+                types.append(GROUP);
+                groups.add(parseGroup(structure, index));
+                index = skipGroup(structure, index);
+            }
+            else if (c == 'i' || c == 's' || c == 'd' || c == 'b' || c == 'B') {
+                types.append(c);
+                groups.add(null);
+            }
+            else {
+                break;
+            }
+        }
+
+        return new Group(types.toString().toCharArray(), groups.toArray(new Group[0]));
+    }
+
+    // returns the index after the ")" that closes the group starting at index
+    private static int skipGroup(String structure, int index) {
+        int depth = 1;
+        while (depth > 0) {
+            if (index >= structure.length()) {
+                throw new IllegalArgumentException("Unmatched parenthesis in structure " + structure);
+            }
+            char c = structure.charAt(index++);
+            if (c == '(') depth++;
+            else if (c == ')') depth--;
+        }
+        return index;
+    }
+
+
+    /**
+     * The fields of a packet that fits the structure, in order (groups are flattened)
+     */
+    public static class Fields {
+        private final HPacket packet;
+        private char[] types = new char[16];
+        private int[] offsets = new int[16];
+        private boolean[] counts = new boolean[16];
+        private int size = 0;
+        private int end;
+
+        private Fields(HPacket packet) {
+            this.packet = packet;
+        }
+
+        private void add(char type, int offset) {
+            if (size == types.length) {
+                types = Arrays.copyOf(types, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            types[size] = type;
+            offsets[size] = offset;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        // the offset after the last field
+        public int getEnd() {
+            return end;
+        }
+
+        public char getType(int field) {
+            return types[field];
+        }
+
+        public int getOffset(int field) {
+            return offsets[field];
+        }
+
+        // true for ints that tell how many times a group is repeated, changing them changes the structure
+        public boolean isCount(int field) {
+            return counts[field];
+        }
+
+        public int getInt(int field) {
+            return packet.readInteger(offsets[field]);
+        }
+
+        public String getString(int field) {
+            return packet.readString(offsets[field]);
+        }
+
+        // strings are sent as UTF-8
+        public String getUtf8String(int field) {
+            int offset = offsets[field];
+            return new String(packet.toBytes(), offset + 2, packet.readUshort(offset), StandardCharsets.UTF_8);
+        }
+
+        public double getDouble(int field) {
+            return packet.readDouble(offsets[field]);
+        }
+
+        public byte getByte(int field) {
+            return packet.readByte(offsets[field]);
+        }
+
+        public boolean getBoolean(int field) {
+            return packet.readBoolean(offsets[field]);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package gearth.misc.packetrepresentation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A set of string replacements that are all applied in a single scan over a packet, see HPacket.replaceStrings()
+ *
+ * addString(old, new) replaces strings that are exactly old, like replaceAllStrings()
+ * addSubstring(old, new) replaces every occurrence of old inside a string, like replaceAllSubstrings()
+ *
+ * Like those methods, any offset where a string could be read counts as a string.
+ * When matches overlap, the one that starts first wins, then the longest one.
+ * Once built, the same set can be used for any amount of packets from any thread.
+ */
+public class StringReplacements {
+
+    private final List<Rule> rules = new ArrayList<>();
+    private volatile Automaton automaton = null;
+
+    public synchronized StringReplacements addString(String oldS, String newS) {
+        rules.add(new Rule(withLength(oldS), withLength(newS), false));
+        automaton = null;
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException if oldS is empty
+     */
+    public synchronized StringReplacements addSubstring(String oldS, String newS) {
+        if (oldS.isEmpty()) {
+            throw new IllegalArgumentException("Can't replace an empty substring");
+        }
+        rules.add(new Rule(oldS.getBytes(StandardCharsets.ISO_8859_1), newS.getBytes(StandardCharsets.ISO_8859_1), true));
+        automaton = null;
+        return this;
+    }
+
+    public synchronized boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    private static byte[] withLength(String s) {
+        byte[] bytes = new byte[2 + s.length()];
+        bytes[0] = (byte) (s.length() >>> 8);
+        bytes[1] = (byte) s.length();
+        System.arraycopy(s.getBytes(StandardCharsets.ISO_8859_1), 0, bytes, 2, s.length());
+        return bytes;
+    }
+
+    private Automaton automaton() {
+        Automaton current = automaton;
+        if (current == null) {
+            synchronized (this) {
+                if (automaton == null) {
+                    automaton = new Automaton(rules.toArray(new Rule[0]));
+                }
+                current = automaton;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @param packet the packet, the header (first 6 bytes) is left alone
+     * @param length the amount of bytes in the array that belong to the packet
+     * @return the packet after the replacements, without a corrected length,
+     *         or null if nothing got replaced
+     */
+    public byte[] apply(byte[] packet, int length) {
+        Automaton automaton = automaton();
+        Rule[] rules = automaton.rules;
+
+        // the longest rule that matches at each offset
+        int[] matchAt = automaton.find(packet, length);
+        if (matchAt == null) {
+            return null;
+        }
+
+        List<Edit> edits = new ArrayList<>();
+        int delta = 0;
+        int lastEnd = 6;
+
+        // the string that the last substring replacement happened in
+        int stringEnd = -1;
+        int stringLength = 0;
+        Edit stringLengthEdit = null;
+
+        for (int start = lastEnd; start < length; start++) {
+            int r = matchAt[start];
+            if (r == -1 || start < lastEnd) {
+                continue;
+            }
+            Rule rule = rules[r];
+            int end = start + rule.pattern.length;
+
+            if (rule.isSubstring && end > stringEnd) {
+                // find the string it's in, its length can't overlap with earlier replacements
+                int stringStart = -1;
+                for (int i = start - 2; i >= Math.max(lastEnd, stringEnd); i--) {
+                    int l = ((packet[i] & 0xff) << 8) | (packet[i + 1] & 0xff);
+                    if (i + 2 + l >= end && i + 2 + l <= length) {
+                        stringStart = i;
+                        stringLength = l;
+                        break;
+                    }
+                }
+                if (stringStart == -1) {
+                    continue;
+                }
+                stringEnd = stringStart + 2 + stringLength;
+                stringLengthEdit = new Edit(stringStart, 2, new byte[2]);
+                edits.add(stringLengthEdit);
+            }
+            else if (!rule.isSubstring && start < stringEnd) {
+                continue; // inside a string that's being edited already
+            }
+
+            edits.add(new Edit(start, rule.pattern.length, rule.replacement));
+            delta += rule.replacement.length - rule.pattern.length;
+            lastEnd = end;
+
+            if (rule.isSubstring) {
+                stringLength += rule.replacement.length - rule.pattern.length;
+                stringLengthEdit.bytes[0] = (byte) (stringLength >>> 8);
+                stringLengthEdit.bytes[1] = (byte) stringLength;
+            }
+        }
+
+        if (edits.isEmpty()) {
+            return null;
+        }
+
+        byte[] result = new byte[length + delta];
+        int from = 0;
+        int to = 0;
+        for (Edit edit : edits) {
+            int keep = edit.offset - from;
+            System.arraycopy(packet, from, result, to, keep);
+            to += keep;
+            System.arraycopy(edit.bytes, 0, result, to, edit.bytes.length);
+            to += edit.bytes.length;
+            from = edit.offset + edit.length;
+        }
+        System.arraycopy(packet, from, result, to, length - from);
+        return result;
+    }
+
+
+    private static class Rule {
+        private final byte[] pattern;
+        private final byte[] replacement;
+        private final boolean isSubstring;
+
+        private Rule(byte[] pattern, byte[] replacement, boolean isSubstring) {
+            this.pattern = pattern;
+            this.replacement = replacement;
+            this.isSubstring = isSubstring;
+        }
+    }
+
+    private static class Edit {
+        private final int offset;
+        private final int length;
+        private final byte[] bytes;
+
+        private Edit(int offset, int length, byte[] bytes) {
+            this.offset = offset;
+            this.length = length;
+            this.bytes = bytes;
+        }
+    }
+
+    // Aho-Corasick automaton over the patterns of all rules, finds every match in one pass over the bytes
+    private static class Automaton {
+        private final Rule[] rules;
+        private final int[][] next;     // state transitions for every byte value
+        private final int[] match;      // the rule with exactly this state's pattern, or -1
+        private final int[] matchLink;  // the next shorter suffix state that has a rule, or -1
+
+        private Automaton(Rule[] rules) {
+            this.rules = rules;
+
+            // trie of the patterns, duplicate patterns keep the first rule
+            List<int[]> trie = new ArrayList<>();
+            List<Integer> trieMatch = new ArrayList<>();
+            trie.add(newState());
+            trieMatch.add(-1);
+            for (int r = 0; r < rules.length; r++) {
+                int state = 0;
+                for (byte b : rules[r].pattern) {
+                    int c = b & 0xff;
+                    if (trie.get(state)[c] == -1) {
+                        trie.get(state)[c] = trie.size();
+                        trie.add(newState());
+                        trieMatch.add(-1);
+                    }
+                    state = trie.get(state)[c];
+                }
+                if (trieMatch.get(state) == -1) {
+                    trieMatch.set(state, r);
+                }
+            }
+
+            int states = trie.size();
+            next = trie.toArray(new int[0][]);
+            match = new int[states];
+            matchLink = new int[states];
+            int[] fail = new int[states];
+            for (int s = 0; s < states; s++) {
+                match[s] = trieMatch.get(s);
+            }
+
+            // breadth first, so the fail state of every state is done before the state itself
+            Deque<Integer> queue = new ArrayDeque<>();
+            matchLink[0] = -1;
+            for (int c = 0; c < 256; c++) {
+                if (next[0][c] == -1) {
+                    next[0][c] = 0;
+                }
+                else {
+                    fail[next[0][c]] = 0;
+                    matchLink[next[0][c]] = -1;
+                    queue.add(next[0][c]);
+                }
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                for (int c = 0; c < 256; c++) {
+                    int child = next[state][c];
+                    if (child == -1) {
+                        next[state][c] = next[fail[state]][c];
+                    }
+                    else {
+                        int f = next[fail[state]][c];
+                        fail[child] = f;
+                        matchLink[child] = match[f] != -1 ? f : matchLink[f];
+                        queue.add(child);
+                    }
+                }
+            }
+        }
+
+        private static int[] newState() {
+            int[] state = new int[256];
+            Arrays.fill(state, -1);
+            return state;
+        }
+
+        // returns the longest rule matching at every offset (-1 for none), or null if nothing matches at all
+        private int[] find(byte[] bytes, int length) {
+            int[] matchAt = null;
+            int state = 0;
+            for (int i = 6; i < length; i++) {
+                state = next[state][bytes[i] & 0xff];
+                for (int s = match[state] != -1 ? state : matchLink[state]; s != -1; s = matchLink[s]) {
+                    int r = match[s];
+                    int start = i - rules[r].pattern.length + 1;
+                    if (matchAt == null) {
+                        matchAt = new int[length];
+                        Arrays.fill(matchAt, -1);
+                    }
+                    if (matchAt[start] == -1 || rules[matchAt[start]].pattern.length < rules[r].pattern.length) {
+                        matchAt[start] = r;
+                    }
+                }
+            }
+            return matchAt;
+        }
+    }
+}
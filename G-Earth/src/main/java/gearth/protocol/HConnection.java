@@ -18,7 +18,7 @@ public class HConnection {
 
     private volatile ExtensionHandler extensionHandler = null;
 
-    private volatile Object[] trafficObservables = {new Observable<TrafficListener>(), new Observable<TrafficListener>(), new Observable<TrafficListener>()};
+    private final TrafficStage[] trafficStages = {new TrafficStage(), new TrafficStage(), new TrafficStage()};
     private volatile Observable<StateChangeListener> stateObservable = new Observable<>();
 
     private volatile HState state = HState.NOT_CONNECTED;
@@ -30,7 +30,13 @@ public class HConnection {
     public HConnection() {
         HConnection selff = this;
         proxyProviderFactory = new ProxyProviderFactory(
-                proxy -> selff.proxy = proxy,
+                proxy -> {
+                    HProxy previous = selff.proxy;
+                    selff.proxy = proxy;
+                    if (previous != null && previous != proxy) {
+                        previous.discard();
+                    }
+                },
                 selff::setState,
                 this
         );
@@ -93,14 +99,20 @@ public class HConnection {
      * 2 = after modification   ¹
      *
      * ¹don't edit the packet (block, replace)
+     *
+     * listeners can be added and removed from any thread
      */
     public void addTrafficListener(int order, TrafficListener listener) {
-        ((Observable<TrafficListener>) trafficObservables[order]).addListener(listener);
+        trafficStages[order].addListener(listener);
+    }
+    // only gets called for packets with this direction and header id
+    public void addTrafficListener(int order, HMessage.Direction direction, int headerId, TrafficListener listener) {
+        trafficStages[order].addListener(direction, headerId, listener);
     }
     public void removeTrafficListener(TrafficListener listener) {
-        ((Observable<TrafficListener>) trafficObservables[0]).removeListener(listener);
-        ((Observable<TrafficListener>) trafficObservables[1]).removeListener(listener);
-        ((Observable<TrafficListener>) trafficObservables[2]).removeListener(listener);
+        for (TrafficStage stage : trafficStages) {
+            stage.removeListener(listener);
+        }
     }
 
     public void setExtensionHandler(ExtensionHandler handler) {
@@ -111,8 +123,8 @@ public class HConnection {
         return extensionHandler;
     }
 
-    public Object[] getTrafficObservables() {
-        return trafficObservables;
+    public TrafficStage[] getTrafficStages() {
+        return trafficStages;
     }
 
     public int getServerPort() {
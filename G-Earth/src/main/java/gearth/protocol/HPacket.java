@@ -5,9 +5,10 @@ import gearth.misc.harble_api.HarbleAPI;
 import gearth.misc.harble_api.HarbleAPIFetcher;
 import gearth.misc.packetrepresentation.InvalidPacketException;
 import gearth.misc.packetrepresentation.PacketStringUtils;
+import gearth.misc.packetrepresentation.PacketStructure;
+import gearth.misc.packetrepresentation.StringReplacements;
 
 import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidParameterException;
 import java.util.Arrays;
@@ -15,27 +16,52 @@ import java.util.Arrays;
 public class HPacket implements StringifyAble {
 
     private boolean isEdited = false;
+    // the backing array grows by doubling when appending, only the first bytesLength bytes belong to the packet
     private byte[] packetInBytes;
+    private int bytesLength;
+    // packets copied with HPacket(HPacket) share the backing array until one of them gets modified
+    private boolean isShared = false;
     private int readIndex = 6;
 
+    // field offsets for the structure set with setStructure(), computed when first needed
+    // and dropped (null) after changes that could move fields around
+    private PacketStructure structure = null;
+    private int[] fieldOffsets = null;
+    private char[] fieldTypes;
+    private boolean[] countFields;
+
     public HPacket(byte[] packet)	{
-        packetInBytes = packet.clone();
+        this(packet, true);
+    }
+    private HPacket(byte[] packet, boolean copy) {
+        packetInBytes = copy ? packet.clone() : packet;
+        bytesLength = packet.length;
+    }
+    // takes ownership of the array instead of copying it, the caller must not modify it afterwards
+    public static HPacket wrap(byte[] packet) {
+        return new HPacket(packet, false);
     }
     public HPacket(HPacket packet) {
-        packetInBytes = packet.packetInBytes.clone();
+        packet.isShared = true;
+        packetInBytes = packet.packetInBytes;
+        bytesLength = packet.bytesLength;
+        isShared = true;
         isEdited = packet.isEdited;
+        structure = packet.structure;
     }
     public HPacket(String packet)	{
         try {
-            packetInBytes = PacketStringUtils.fromString(packet).packetInBytes;
+            packetInBytes = PacketStringUtils.fromString(packet).toBytes();
         } catch (InvalidPacketException e) {
             packetInBytes = new byte[0];
             // will be corrupted
             // e.printStackTrace();
         }
+        bytesLength = packetInBytes.length;
     }
     public HPacket(int header) {
         packetInBytes = new byte[]{0,0,0,2,0,0};
+        bytesLength = 6;
         replaceUShort(4, header);
         isEdited = false;
     }
@@ -61,7 +87,7 @@ public class HPacket implements StringifyAble {
     }
 
     public String toString()	{
-        return PacketStringUtils.toString(packetInBytes);
+        return PacketStringUtils.toString(toSharedBytes());
     }
 
     public boolean structureEquals(String structure) {
@@ -74,7 +100,19 @@ public class HPacket implements StringifyAble {
         return 2;
     }
 
+    // the returned array belongs to this packet only, so writing into it doesn't affect copies of this packet
     public byte[] toBytes()		{
+        ensureWritable();
+        return toSharedBytes();
+    }
+
+    // same bytes as toBytes() without copying them, but they can be shared with copies of this packet:
+    // only for code that just reads or writes them out (like the packet pipeline), never modify them
+    public byte[] toSharedBytes() {
+        if (packetInBytes.length != bytesLength) {
+            packetInBytes = Arrays.copyOf(packetInBytes, bytesLength);
+            isShared = false;
+        }
         return packetInBytes;
     }
 
@@ -90,7 +128,7 @@ public class HPacket implements StringifyAble {
 
     public boolean isCorrupted()	{
 
-        if (packetInBytes.length >= 6)	{
+        if (bytesLength >= 6)	{
             if (length() == getBytesLength() - 4)	{
                 return false;
             }
@@ -100,29 +138,30 @@ public class HPacket implements StringifyAble {
 
     public byte readByte()	{
         readIndex++;
-        return packetInBytes[readIndex - 1];
+        return readByte(readIndex - 1);
     }
     public byte readByte(int index)	{
+        checkBounds(index, 1);
         return packetInBytes[index];
     }
 
     public short readShort()	{
-        byte[] btarray = new byte[]{packetInBytes[readIndex], packetInBytes[readIndex + 1]};
+        short result = readShort(readIndex);
         readIndex +=2;
-        return java.nio.ByteBuffer.wrap(btarray).getShort();
+        return result;
     }
     public short readShort(int index)	{
-        byte[] btarray = new byte[]{packetInBytes[index], packetInBytes[index + 1]};
-        return java.nio.ByteBuffer.wrap(btarray).getShort();
+        checkBounds(index, 2);
+        return (short) ((packetInBytes[index] << 8) | (packetInBytes[index + 1] & 0xff));
     }
     public int readUshort() {
-        byte[] btarray = new byte[]{0, 0, packetInBytes[readIndex], packetInBytes[readIndex + 1]};
+        int result = readUshort(readIndex);
         readIndex +=2;
-        return java.nio.ByteBuffer.wrap(btarray).getInt();
+        return result;
     }
     public int readUshort(int index) {
-        byte[] btarray = new byte[]{0, 0, packetInBytes[index], packetInBytes[index + 1]};
-        return java.nio.ByteBuffer.wrap(btarray).getInt();
+        checkBounds(index, 2);
+        return ((packetInBytes[index] & 0xff) << 8) | (packetInBytes[index + 1] & 0xff);
     }
 
     public int headerId()	{
@@ -130,13 +169,16 @@ public class HPacket implements StringifyAble {
     }
 
     public int readInteger(){
-        byte[] btarray = new byte[]{packetInBytes[readIndex], packetInBytes[readIndex + 1], packetInBytes[readIndex + 2], packetInBytes[readIndex + 3]};
+        int result = readInteger(readIndex);
         readIndex +=4;
-        return java.nio.ByteBuffer.wrap(btarray).getInt();
+        return result;
     }
     public int readInteger(int index)	{
-        byte[] btarray = new byte[]{packetInBytes[index], packetInBytes[index + 1], packetInBytes[index + 2], packetInBytes[index + 3]};
-        return java.nio.ByteBuffer.wrap(btarray).getInt();
+        checkBounds(index, 4);
+        return (packetInBytes[index] << 24) |
+                ((packetInBytes[index + 1] & 0xff) << 16) |
+                ((packetInBytes[index + 2] & 0xff) << 8) |
+                (packetInBytes[index + 3] & 0xff);
     }
 
     public double readDouble(){
@@ -145,39 +187,37 @@ public class HPacket implements StringifyAble {
         return result;
     }
     public double readDouble(int index)	{
-        return java.nio.ByteBuffer.wrap(packetInBytes).getDouble(index);
+        return Double.longBitsToDouble(readLong(index));
     }
 
     public int length()	{
         return readInteger(0);
     }
     public int getBytesLength()	{
-        return packetInBytes.length;
+        return bytesLength;
     }
 
     public byte[] readBytes(int length)	{
-        byte[] newbytes = new byte[length];
-        for (int i = 0; i < (length); i++)	{
-            newbytes[i] = packetInBytes[i+ readIndex];
-        }
+        byte[] newbytes = readBytes(length, readIndex);
         readIndex +=length;
         return newbytes;
     }
     public byte[] readBytes(int length, int index)	{
         byte[] newbytes = new byte[length];
-        for (int i = 0; i < (length); i++)	{
-            newbytes[i] = packetInBytes[i+index];
+        if (length > 0) {
+            checkBounds(index, length);
         }
+        System.arraycopy(packetInBytes, index, newbytes, 0, length);
         return newbytes;
     }
 
     public long readLong()	{
-        byte[] btarray = readBytes(8);
-        return java.nio.ByteBuffer.wrap(btarray).getLong();
+        long result = readLong(readIndex);
+        readIndex +=8;
+        return result;
     }
     public long readLong(int index)	{
-        byte[] btarray = readBytes(8, index);
-        return java.nio.ByteBuffer.wrap(btarray).getLong();
+        return ((long) readInteger(index) << 32) | (readInteger(index + 4) & 0xffffffffL);
     }
 
     public String readString()	{
@@ -193,9 +233,13 @@ public class HPacket implements StringifyAble {
     }
 
     private String readString(int index, int length) {
-        byte[] x = new byte[length];
-        for (int i = 0; i < x.length; i++)	{ x[i] = readByte(index); index++;	}
-        return new String(x, StandardCharsets.ISO_8859_1);
+        if (length < 0) {
+            throw new NegativeArraySizeException(Integer.toString(length));
+        }
+        if (length > 0) {
+            checkBounds(index, length);
+        }
+        return length == 0 ? "" : new String(packetInBytes, index, length, StandardCharsets.ISO_8859_1);
     }
 
     public String readLongString()	{
@@ -220,34 +264,40 @@ public class HPacket implements StringifyAble {
 
     public HPacket replaceBoolean(int index, boolean b) {
         isEdited = true;
+        checkBounds(index, 1);
+        keepFieldOffsets(index, 'b', readBoolean(index) == b);
+        ensureWritable();
         packetInBytes[index] = b ? (byte)1 : (byte)0;
         return this;
     }
     public HPacket replaceInt(int index, int i) {
         isEdited = true;
-        ByteBuffer b = ByteBuffer.allocate(4).putInt(i);
-        for (int j = 0; j < 4; j++) {
-            packetInBytes[index + j] = b.array()[j];
-        }
+        checkBounds(index, 4);
+        keepFieldOffsets(index, 'i', readInteger(index) == i);
+        ensureWritable();
+        writeInt(packetInBytes, index, i);
         return this;
     }
     public HPacket replaceDouble(int index, double d) {
         isEdited = true;
-        ByteBuffer b = ByteBuffer.allocate(8).putDouble(d);
-        for (int j = 0; j < 8; j++) {
-            packetInBytes[index + j] = b.array()[j];
-        }
+        checkBounds(index, 8);
+        keepFieldOffsets(index, 'd', Double.doubleToLongBits(readDouble(index)) == Double.doubleToLongBits(d));
+        ensureWritable();
+        writeLong(packetInBytes, index, Double.doubleToLongBits(d));
         return this;
     }
     public HPacket replaceByte(int index, byte b) {
         isEdited = true;
+        checkBounds(index, 1);
+        keepFieldOffsets(index, 'b', readByte(index) == b);
+        ensureWritable();
         packetInBytes[index] = b;
         return this;
     }
     public HPacket replaceBytes(int index, byte[] bytes) {
         isEdited = true;
         int i = 0;
-        while (index + i < packetInBytes.length && i < bytes.length) {
+        while (index + i < bytesLength && i < bytes.length) {
             replaceByte(index + i, bytes[i]);
             i++;
         }
@@ -255,46 +305,40 @@ public class HPacket implements StringifyAble {
     }
     public HPacket replaceUShort(int index, int ushort) {
         isEdited = true;
-        ByteBuffer b = ByteBuffer.allocate(4).putInt(ushort);
-        packetInBytes[index] = b.array()[2];
-        packetInBytes[index + 1] = b.array()[3];
+        checkBounds(index, 2);
+        keepFieldOffsets(index, 'u', readUshort(index) == (ushort & 0xffff));
+        ensureWritable();
+        writeShort(packetInBytes, index, ushort);
         return this;
     }
     public HPacket replaceShort(int index, short s) {
         isEdited = true;
-        ByteBuffer b = ByteBuffer.allocate(2).putShort(s);
-        packetInBytes[index] = b.array()[0];
-        packetInBytes[index + 1] = b.array()[1];
+        checkBounds(index, 2);
+        keepFieldOffsets(index, 'u', readShort(index) == s);
+        ensureWritable();
+        writeShort(packetInBytes, index, s);
         return this;
     }
     public HPacket replaceString(int index, String s) {
         isEdited = true;
+        ensureWritable();
         byte[] sbytes = s.getBytes(StandardCharsets.ISO_8859_1);
         int mover = s.length() - readUshort(index);
+        shiftFieldOffsets(index, mover);
 
         if (mover != 0) {
-            byte[] newPacket = Arrays.copyOf(packetInBytes, packetInBytes.length + mover);
-
-            if (mover > 0) {
-                int i = newPacket.length - 1;
-                while (i > index + mover + 2) {
-                    newPacket[i] = packetInBytes[i - mover];
-                    i--;
-                }
-            }
-            else {
-                int i = index + 2 + s.length();
-                while (i < newPacket.length) {
-                    newPacket[i] = packetInBytes[i - mover];
-                    i++;
-                }
-            }
+            // everything after the old string moves to the end of the new one
+            int oldEnd = index + 2 + s.length() - mover;
+            byte[] newPacket = new byte[bytesLength + mover];
+            System.arraycopy(packetInBytes, 0, newPacket, 0, index + 2);
+            System.arraycopy(packetInBytes, oldEnd, newPacket, oldEnd + mover, bytesLength - oldEnd);
 
             packetInBytes = newPacket;
+            bytesLength = newPacket.length;
             fixLength();
         }
 
-        replaceUShort(index, s.length());
+        writeShort(packetInBytes, index, s.length());
         for (int i = 0; i < s.length(); i++) {
             packetInBytes[index + 2 + i] = sbytes[i];
         }
@@ -302,9 +346,9 @@ public class HPacket implements StringifyAble {
     }
 
     private boolean canReadString(int index) {
-        if (index < packetInBytes.length - 1) {
+        if (index < bytesLength - 1) {
             int l = readUshort(index);
-            if (index + 1 + l < packetInBytes.length) {
+            if (index + 1 + l < bytesLength) {
                 return true;
             }
         }
@@ -318,9 +362,10 @@ public class HPacket implements StringifyAble {
     public HPacket replaceXStrings(String oldS, String newS, int amount) {
         if (amount == 0) return this;
 
+        byte[] oldBytes = oldS.getBytes(StandardCharsets.ISO_8859_1);
         int i = 6;
-        while (i < packetInBytes.length - 1 - oldS.length()) {
-            if (readUshort(i) == oldS.length() && readString(i).equals(oldS)) {
+        while (i < bytesLength - 1 - oldS.length()) {
+            if (readUshort(i) == oldS.length() && regionEquals(i + 2, oldBytes)) {
                 replaceString(i, newS);
                 i += 1 + newS.length();
                 amount -= 1;
@@ -344,14 +389,13 @@ public class HPacket implements StringifyAble {
             return this;
         }
 
-        int max = packetInBytes.length;
-        int i = packetInBytes.length - 2 - oldS.length();
+        int max = bytesLength;
+        int i = bytesLength - 2 - oldS.length();
         while (i >= 6) {
             if (canReadString(i)) {
                 String s = readString(i);
-                System.out.println(s.contains(oldS));
                 if (s.contains(oldS) && i + 2 + s.length() <= max) {
-                    String replacement = s.replaceAll(oldS, newS);
+                    String replacement = s.replace(oldS, newS);
 
                     replaceString(i, replacement);
                     i -= (1 + oldS.length());
@@ -371,9 +415,34 @@ public class HPacket implements StringifyAble {
         return replaceXSubstrings(oldS, newS, -1);
     }
 
+    /**
+     * Applies all replacements in a single scan over the packet, build the replacements once and reuse them
+     */
+    public HPacket replaceStrings(StringReplacements replacements) {
+        byte[] replaced = replacements.apply(packetInBytes, bytesLength);
+        if (replaced != null) {
+            isEdited = true;
+            packetInBytes = replaced;
+            bytesLength = replaced.length;
+            isShared = false;
+            fieldOffsets = null;
+            fixLength();
+        }
+        return this;
+    }
+
+    private boolean regionEquals(int index, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (packetInBytes[index + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public HPacket replaceAllIntegers(int val, int replacement) {
         int i = 6;
-        while (i < packetInBytes.length - 3) {
+        while (i < bytesLength - 3) {
             if (readInteger(i) == val) {
                 replaceInt(i, replacement);
                 i += 3;
@@ -384,39 +453,171 @@ public class HPacket implements StringifyAble {
     }
 
 
+    /**
+     * Sets the structure of this packet (ex. "i(isi(b))iBd"), so fields can be read and replaced by their
+     * position in the structure (ex. readStringField(2)) instead of by their offset in the packet.
+     * The offsets are located once, when a field is first accessed, and kept up to date afterwards
+     */
+    public HPacket setStructure(PacketStructure structure) {
+        this.structure = structure;
+        fieldOffsets = null;
+        return this;
+    }
+    public HPacket setStructure(String structure) {
+        return setStructure(PacketStructure.get(structure));
+    }
+
+    /**
+     * Uses the structure the Harble API knows for this packet
+     * @return false if there is no known structure for this packet
+     */
+    public boolean setStructure(HMessage.Direction direction) {
+        HarbleAPI.HarbleMessage msg;
+        PacketStructure known;
+        if (HarbleAPIFetcher.HARBLEAPI == null ||
+                (msg = HarbleAPIFetcher.HARBLEAPI.getHarbleMessageFromHeaderId(direction, headerId())) == null ||
+                (known = msg.getCompiledStructure()) == null) {
+            return false;
+        }
+        setStructure(known);
+        return true;
+    }
+
+    public PacketStructure getStructure() {
+        return structure;
+    }
+
+    public int getFieldCount() {
+        return fieldOffsets().length;
+    }
+    public int getFieldOffset(int field) {
+        return fieldOffsets()[field];
+    }
+    public char getFieldType(int field) {
+        fieldOffsets();
+        return fieldTypes[field];
+    }
+
+    public int readIntegerField(int field) {
+        return readInteger(fieldOffset(field, 'i'));
+    }
+    public String readStringField(int field) {
+        return readString(fieldOffset(field, 's'));
+    }
+    public double readDoubleField(int field) {
+        return readDouble(fieldOffset(field, 'd'));
+    }
+    public byte readByteField(int field) {
+        return readByte(fieldOffset(field, 'b'));
+    }
+    public boolean readBooleanField(int field) {
+        return readBoolean(fieldOffset(field, 'b'));
+    }
+
+    public HPacket replaceIntField(int field, int i) {
+        return replaceInt(fieldOffset(field, 'i'), i);
+    }
+    public HPacket replaceStringField(int field, String s) {
+        return replaceString(fieldOffset(field, 's'), s);
+    }
+    public HPacket replaceDoubleField(int field, double d) {
+        return replaceDouble(fieldOffset(field, 'd'), d);
+    }
+    public HPacket replaceByteField(int field, byte b) {
+        return replaceByte(fieldOffset(field, 'b'), b);
+    }
+    public HPacket replaceBooleanField(int field, boolean b) {
+        return replaceBoolean(fieldOffset(field, 'b'), b);
+    }
+
+    private int[] fieldOffsets() {
+        if (fieldOffsets == null) {
+            if (structure == null) {
+                throw new IllegalStateException("No structure set");
+            }
+            PacketStructure.Fields fields = structure.readFields(this);
+            if (fields == null) {
+                throw new IllegalStateException("Packet doesn't fit structure " + structure.getStructure());
+            }
+
+            int size = fields.size();
+            int[] offsets = new int[size];
+            fieldTypes = new char[size];
+            countFields = new boolean[size];
+            for (int i = 0; i < size; i++) {
+                offsets[i] = fields.getOffset(i);
+                fieldTypes[i] = fields.getType(i);
+                countFields[i] = fields.isCount(i);
+            }
+            fieldOffsets = offsets;
+        }
+        return fieldOffsets;
+    }
+
+    // bytes and booleans are interchangeable
+    private int fieldOffset(int field, char type) {
+        int offset = fieldOffsets()[field];
+        char fieldType = fieldTypes[field] == 'B' ? 'b' : fieldTypes[field];
+        if (fieldType != type) {
+            throw new IllegalArgumentException("Field " + field + " is of type " + fieldTypes[field] + ", not " + type);
+        }
+        return offset;
+    }
+
+    // in-place replaces only keep the offsets if they overwrite a whole field of the same type,
+    // or don't change anything. Fields can't move otherwise, except when a group count changes
+    private void keepFieldOffsets(int index, char type, boolean unchanged) {
+        if (fieldOffsets == null || unchanged) {
+            return;
+        }
+        int field = Arrays.binarySearch(fieldOffsets, index);
+        if (field < 0 || countFields[field] || (fieldTypes[field] == 'B' ? 'b' : fieldTypes[field]) != type) {
+            fieldOffsets = null;
+        }
+    }
+
+    // a string at index changes length, the fields after it move along
+    private void shiftFieldOffsets(int index, int mover) {
+        if (fieldOffsets == null) {
+            return;
+        }
+        int field = Arrays.binarySearch(fieldOffsets, index);
+        if (field < 0 || fieldTypes[field] != 's') {
+            fieldOffsets = null;
+        }
+        else if (mover != 0) {
+            for (int i = field + 1; i < fieldOffsets.length; i++) {
+                fieldOffsets[i] += mover;
+            }
+        }
+    }
+
+
     public HPacket appendInt(int i) {
         isEdited = true;
-        packetInBytes = Arrays.copyOf(packetInBytes, packetInBytes.length + 4);
-        ByteBuffer byteBuffer = ByteBuffer.allocate(4).putInt(i);
-        for (int j = 0; j < 4; j++) {
-            packetInBytes[packetInBytes.length - 4 + j] = byteBuffer.array()[j];
-        }
+        int index = extend(4);
+        writeInt(packetInBytes, index, i);
         fixLength();
         return this;
     }
     public HPacket appendDouble(double d) {
         isEdited = true;
-        packetInBytes = Arrays.copyOf(packetInBytes, packetInBytes.length + 8);
-        ByteBuffer byteBuffer = ByteBuffer.allocate(8).putDouble(d);
-        for (int j = 0; j < 8; j++) {
-            packetInBytes[packetInBytes.length - 8 + j] = byteBuffer.array()[j];
-        }
+        int index = extend(8);
+        writeLong(packetInBytes, index, Double.doubleToLongBits(d));
         fixLength();
         return this;
     }
     public HPacket appendByte(byte b) {
         isEdited = true;
-        packetInBytes = Arrays.copyOf(packetInBytes, packetInBytes.length + 1);
-        packetInBytes[packetInBytes.length - 1] = b;
+        int index = extend(1);
+        packetInBytes[index] = b;
         fixLength();
         return this;
     }
     public HPacket appendBytes(byte[] bytes) {
         isEdited = true;
-        packetInBytes = Arrays.copyOf(packetInBytes, packetInBytes.length + bytes.length);
-        for (int i = 0; i < bytes.length; i++) {
-            packetInBytes[packetInBytes.length - bytes.length + i] = bytes[i];
-        }
+        int index = extend(bytes.length);
+        System.arraycopy(bytes, 0, packetInBytes, index, bytes.length);
         fixLength();
         return this;
     }
@@ -427,21 +628,15 @@ public class HPacket implements StringifyAble {
     }
     public HPacket appendUShort(int ushort) {
         isEdited = true;
-        packetInBytes = Arrays.copyOf(packetInBytes, packetInBytes.length + 2);
-        ByteBuffer byteBuffer = ByteBuffer.allocate(4).putInt(ushort);
-        for (int j = 2; j < 4; j++) {
-            packetInBytes[packetInBytes.length - 4 + j] = byteBuffer.array()[j];
-        }
+        int index = extend(2);
+        writeShort(packetInBytes, index, ushort);
         fixLength();
         return this;
     }
     public HPacket appendShort(short s) {
         isEdited = true;
-        packetInBytes = Arrays.copyOf(packetInBytes, packetInBytes.length + 2);
-        ByteBuffer byteBuffer = ByteBuffer.allocate(2).putShort(s);
-        for (int j = 0; j < 2; j++) {
-            packetInBytes[packetInBytes.length - 2 + j] = byteBuffer.array()[j];
-        }
+        int index = extend(2);
+        writeShort(packetInBytes, index, s);
         fixLength();
         return this;
     }
@@ -481,26 +676,69 @@ public class HPacket implements StringifyAble {
 
 
     public HPacket removeFrom(int index) {
-        return removeRange(index, packetInBytes.length - index);
+        return removeRange(index, bytesLength - index);
     }
     public HPacket removeRange(int index, int length) {
         isEdited = true;
-        for (int i = index; i < packetInBytes.length - length; i++) {
-            packetInBytes[i] = packetInBytes[i + length];
+        ensureWritable();
+        if (index < bytesLength - length) {
+            System.arraycopy(packetInBytes, index + length, packetInBytes, index, bytesLength - length - index);
         }
-        packetInBytes = Arrays.copyOf(packetInBytes, packetInBytes.length - length);
+        bytesLength -= length;
+        fieldOffsets = null;
         fixLength();
         return this;
     }
 
+    // makes room for the given amount of bytes at the end of the packet and returns where they start
+    private int extend(int amount) {
+        int index = bytesLength;
+        if (isShared || packetInBytes.length - bytesLength < amount) {
+            packetInBytes = Arrays.copyOf(packetInBytes, Math.max(packetInBytes.length * 2, bytesLength + amount));
+            isShared = false;
+        }
+        bytesLength += amount;
+        return index;
+    }
+
+    // copies the shared backing array before it gets modified
+    private void ensureWritable() {
+        if (isShared) {
+            packetInBytes = Arrays.copyOf(packetInBytes, bytesLength);
+            isShared = false;
+        }
+    }
+
+    private void checkBounds(int index, int size) {
+        if (index < 0 || index > bytesLength - size) {
+            throw new ArrayIndexOutOfBoundsException(index < 0 ? index : Math.max(index, bytesLength));
+        }
+    }
+
+    // big-endian, like the readers above
+    private static void writeShort(byte[] bytes, int index, int s) {
+        bytes[index] = (byte) (s >>> 8);
+        bytes[index + 1] = (byte) s;
+    }
+    private static void writeInt(byte[] bytes, int index, int i) {
+        bytes[index] = (byte) (i >>> 24);
+        bytes[index + 1] = (byte) (i >>> 16);
+        bytes[index + 2] = (byte) (i >>> 8);
+        bytes[index + 3] = (byte) i;
+    }
+    private static void writeLong(byte[] bytes, int index, long l) {
+        writeInt(bytes, index, (int) (l >>> 32));
+        writeInt(bytes, index + 4, (int) l);
+    }
+
     public boolean isReplaced() {
         return isEdited;
     }
 
     public void fixLength() {
-        boolean remember = isEdited;
-        replaceInt(0, packetInBytes.length - 4);
-        isEdited = remember;
+        checkBounds(0, 4);
+        ensureWritable();
+        writeInt(packetInBytes, 0, bytesLength - 4);
     }
 
     public void overrideEditedField(boolean edited) {
@@ -513,8 +751,10 @@ public class HPacket implements StringifyAble {
         HarbleAPI.HarbleMessage msg;
         if (HarbleAPIFetcher.HARBLEAPI != null &&
                 ((msg = HarbleAPIFetcher.HARBLEAPI.getHarbleMessageFromHeaderId(direction, headerId())) != null)) {
-            if (msg.getStructure() != null) {
-                return PacketStringUtils.toExpressionFromGivenStructure(this, msg.getStructure());
+            PacketStructure structure = msg.getCompiledStructure();
+            String expression;
+            if (structure != null && (expression = structure.toExpression(this)) != null) {
+                return expression;
             }
         }
         return toExpression();
@@ -532,7 +772,7 @@ public class HPacket implements StringifyAble {
     @Override
     public String stringify() {
         String st = null;
-        st = (isEdited ? "1" : "0") + new String(packetInBytes, StandardCharsets.ISO_8859_1);
+        st = (isEdited ? "1" : "0") + new String(packetInBytes, 0, bytesLength, StandardCharsets.ISO_8859_1);
         return st;
     }
 
@@ -540,6 +780,9 @@ public class HPacket implements StringifyAble {
     public void constructFromString(String str) {
         this.isEdited = str.charAt(0) == '1';
         packetInBytes = str.substring(1).getBytes(StandardCharsets.ISO_8859_1);
+        bytesLength = packetInBytes.length;
+        isShared = false;
+        fieldOffsets = null;
     }
 
     @Override
@@ -547,7 +790,7 @@ public class HPacket implements StringifyAble {
         if (!(object instanceof HPacket)) return false;
 
         HPacket packet2 = (HPacket) object;
-        return Arrays.equals(packetInBytes, packet2.packetInBytes) && (isEdited == packet2.isEdited);
+        return Arrays.equals(toSharedBytes(), packet2.toSharedBytes()) && (isEdited == packet2.isEdited);
     }
 
     public static void main(String[] args) {
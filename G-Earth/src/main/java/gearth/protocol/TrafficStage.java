@@ -0,0 +1,157 @@
+package gearth.protocol;
+
+import java.util.Arrays;
+
+/**
+ * The traffic listeners of one order (see HConnection.addTrafficListener), either for all packets
+ * or for a single direction and header id.
+ *
+ * The listeners are kept in an immutable table that gets replaced on every change, so listeners can be
+ * (un)registered from any thread, also while the packet threads are calling them. A packet only gets
+ * passed to the listeners for every packet and the ones for its header, newest listener first.
+ */
+public class TrafficStage {
+
+    private static final Entry[] NONE = new Entry[0];
+
+    private volatile Table table = new Table(NONE, new int[][]{new int[0], new int[0]}, new Entry[][][]{new Entry[0][], new Entry[0][]});
+    private int registrations = 0; // guarded by this
+
+    public synchronized void addListener(TrafficListener listener) {
+        Table current = table;
+        table = new Table(prepend(current.all, listener), current.headerIds, current.byHeader);
+    }
+
+    public synchronized void addListener(HMessage.Direction direction, int headerId, TrafficListener listener) {
+        Table current = table;
+        int d = direction.ordinal();
+        int[][] headerIds = current.headerIds.clone();
+        Entry[][][] byHeader = current.byHeader.clone();
+
+        int index = Arrays.binarySearch(headerIds[d], headerId);
+        if (index >= 0) {
+            byHeader[d] = byHeader[d].clone();
+            byHeader[d][index] = prepend(byHeader[d][index], listener);
+        }
+        else {
+            index = -index - 1;
+            headerIds[d] = insert(headerIds[d], index, headerId);
+            byHeader[d] = insert(byHeader[d], index, prepend(NONE, listener));
+        }
+
+        table = new Table(current.all, headerIds, byHeader);
+    }
+
+    public synchronized void removeListener(TrafficListener listener) {
+        Table current = table;
+        int[][] headerIds = current.headerIds.clone();
+        Entry[][][] byHeader = current.byHeader.clone();
+
+        for (int d = 0; d < 2; d++) {
+            int kept = 0;
+            int[] ids = new int[headerIds[d].length];
+            Entry[][] entries = new Entry[ids.length][];
+            for (int i = 0; i < ids.length; i++) {
+                Entry[] without = remove(byHeader[d][i], listener);
+                if (without.length > 0) {
+                    ids[kept] = headerIds[d][i];
+                    entries[kept] = without;
+                    kept++;
+                }
+            }
+            headerIds[d] = Arrays.copyOf(ids, kept);
+            byHeader[d] = Arrays.copyOf(entries, kept);
+        }
+
+        table = new Table(remove(current.all, listener), headerIds, byHeader);
+    }
+
+    /**
+     * Passes the message to the interested listeners, the read index of the packet is reset for every listener
+     */
+    public void fireEvent(HMessage message) {
+        Table current = table;
+        HPacket packet = message.getPacket();
+
+        Entry[] forHeader = NONE;
+        int[] headerIds = current.headerIds[message.getDestination().ordinal()];
+        if (headerIds.length > 0 && packet.getBytesLength() >= 6) {
+            int index = Arrays.binarySearch(headerIds, packet.headerId());
+            if (index >= 0) {
+                forHeader = current.byHeader[message.getDestination().ordinal()][index];
+            }
+        }
+
+        // both are ordered newest first, merge them to keep that order
+        Entry[] all = current.all;
+        int a = 0;
+        int h = 0;
+        while (a < all.length || h < forHeader.length) {
+            Entry next = h == forHeader.length || (a < all.length && all[a].registration > forHeader[h].registration)
+                    ? all[a++]
+                    : forHeader[h++];
+            packet.resetReadIndex();
+            next.listener.onCapture(message);
+        }
+        packet.resetReadIndex();
+    }
+
+
+    private Entry[] prepend(Entry[] entries, TrafficListener listener) {
+        Entry[] result = new Entry[entries.length + 1];
+        result[0] = new Entry(registrations++, listener);
+        System.arraycopy(entries, 0, result, 1, entries.length);
+        return result;
+    }
+
+    private static Entry[] remove(Entry[] entries, TrafficListener listener) {
+        int kept = 0;
+        Entry[] result = new Entry[entries.length];
+        for (Entry entry : entries) {
+            if (entry.listener != listener) {
+                result[kept++] = entry;
+            }
+        }
+        return kept == entries.length ? entries : Arrays.copyOf(result, kept);
+    }
+
+    private static int[] insert(int[] array, int index, int value) {
+        int[] result = new int[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    private static Entry[][] insert(Entry[][] array, int index, Entry[] value) {
+        Entry[][] result = new Entry[array.length + 1][];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+
+    private static class Entry {
+        private final int registration;
+        private final TrafficListener listener;
+
+        private Entry(int registration, TrafficListener listener) {
+            this.registration = registration;
+            this.listener = listener;
+        }
+    }
+
+    // never modified once published
+    private static class Table {
+        private final Entry[] all;
+        private final int[][] headerIds;        // per direction, sorted
+        private final Entry[][][] byHeader;     // per direction, the listeners of headerIds[direction][i]
+
+        private Table(Entry[] all, int[][] headerIds, Entry[][][] byHeader) {
+            this.all = all;
+            this.headerIds = headerIds;
+            this.byHeader = byHeader;
+        }
+    }
+}
@@ -1,78 +1,96 @@
 package gearth.protocol.connection;
 
+import gearth.misc.GEarthThreads;
 import gearth.protocol.HPacket;
+import gearth.protocol.packethandler.PacketHandler;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 public class AsyncPacketSender {
 
+    // queued by shutdown(), makes the sender threads stop
+    private static final HPacket SHUTDOWN = new HPacket(0);
+
     private final HProxy proxy;
-    private final Queue<HPacket> sendToClientAsyncQueue = new LinkedList<>();
-    private final Queue<HPacket> sendToServerAsyncQueue = new LinkedList<>();
+    private final BlockingQueue<HPacket> sendToClientAsyncQueue = new LinkedBlockingQueue<>();
+    private final BlockingQueue<HPacket> sendToServerAsyncQueue = new LinkedBlockingQueue<>();
+
+    private volatile boolean isShutdown = false;
 
     AsyncPacketSender(HProxy proxy) {
         this.proxy = proxy;
-        new Thread(() -> {
-            while (true) {
-                HPacket packet;
-                synchronized (sendToClientAsyncQueue) {
-                    while ((packet = sendToClientAsyncQueue.poll()) != null) {
-                        sendToClient(packet);
-                    }
-                }
+        GEarthThreads.start("G-Earth async sender (toclient)", () -> sendLoop(sendToClientAsyncQueue, true));
+        GEarthThreads.start("G-Earth async sender (toserver)", () -> sendLoop(sendToServerAsyncQueue, false));
+    }
 
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+    // waits for packets and sends everything that got queued in the meantime at once
+    private void sendLoop(BlockingQueue<HPacket> queue, boolean toClient) {
+        List<HPacket> batch = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
             }
-        }).start();
-        new Thread(() -> {
-            while (true) {
-                HPacket packet;
-                synchronized (sendToServerAsyncQueue) {
-                    while ((packet = sendToServerAsyncQueue.poll()) != null) {
-                        sendToServer(packet);
-                    }
-                }
+            queue.drainTo(batch);
 
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            boolean shutdown = false;
+            for (HPacket packet : batch) {
+                if (packet == SHUTDOWN) {
+                    shutdown = true;
+                    break;
                 }
+                byte[] packetBytes = packet.toBytes();
+                bytes.write(packetBytes, 0, packetBytes.length);
             }
-        }).start();
-    }
+            batch.clear();
 
+            if (bytes.size() > 0) {
+                PacketHandler handler = toClient ? proxy.getInHandler() : proxy.getOutHandler();
+                handler.sendToStream(bytes.toByteArray());
+                bytes.reset();
+            }
 
-    private void sendToClient(HPacket message) {
-        proxy.getInHandler().sendToStream(message.toBytes());
-    }
-    private void sendToServer(HPacket message) {
-        proxy.getOutHandler().sendToStream(message.toBytes());
+            if (shutdown) {
+                return;
+            }
+        }
     }
 
     public void sendToClientAsync(HPacket message) {
-        synchronized (sendToClientAsyncQueue) {
+        if (!isShutdown) {
             sendToClientAsyncQueue.add(message);
         }
-
     }
     public void sendToServerAsync(HPacket message) {
-        synchronized (sendToServerAsyncQueue) {
+        if (!isShutdown) {
             sendToServerAsyncQueue.add(message);
         }
     }
 
     public void clear() {
-        synchronized (sendToClientAsyncQueue) {
-            sendToClientAsyncQueue.clear();
+        sendToClientAsyncQueue.clear();
+        sendToServerAsyncQueue.clear();
+        if (isShutdown) {
+            sendToClientAsyncQueue.add(SHUTDOWN);
+            sendToServerAsyncQueue.add(SHUTDOWN);
         }
-        synchronized (sendToServerAsyncQueue) {
-            sendToServerAsyncQueue.clear();
+    }
+
+    /**
+     * Stops the sender threads once the packets that are already queued have been sent
+     */
+    public void shutdown() {
+        if (!isShutdown) {
+            isShutdown = true;
+            sendToClientAsyncQueue.add(SHUTDOWN);
+            sendToServerAsyncQueue.add(SHUTDOWN);
         }
     }
 }
@@ -37,9 +37,19 @@ public class HProxy {
         this.inHandler = incomingHandler;
         this.outHandler = outgoingHandler;
         this.hotelVersion = hotelVersion;
+        if (asyncPacketSender != null) {
+            asyncPacketSender.shutdown();
+        }
         this.asyncPacketSender = new AsyncPacketSender(this);
     }
 
+    // the connection of this proxy has ended
+    public void discard() {
+        if (asyncPacketSender != null) {
+            asyncPacketSender.shutdown();
+        }
+    }
+
     public int getActual_port() {
         return actual_port;
     }
@@ -1,16 +1,20 @@
 package gearth.protocol.connection.proxy;
 
 import gearth.misc.Cacher;
+import gearth.misc.GEarthThreads;
 import gearth.protocol.HConnection;
 import gearth.protocol.connection.HProxy;
 import gearth.protocol.connection.HProxySetter;
 import gearth.protocol.connection.HState;
 import gearth.protocol.connection.HStateSetter;
+import gearth.protocol.connection.proxy.nio.NioProxyEngine;
 import gearth.protocol.hostreplacer.hostsfile.HostReplacer;
 import gearth.protocol.hostreplacer.hostsfile.HostReplacerFactory;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -94,10 +98,15 @@ public class NormalProxyProvider extends ProxyProvider {
         for (int c = 0; c < potentialProxies.size(); c++) {
             HProxy potentialProxy = potentialProxies.get(c);
 
+            if (NioProxyEngine.isEnabled()) {
+                launchNioListener(potentialProxy);
+                continue;
+            }
+
             ServerSocket proxy_server = new ServerSocket(potentialProxy.getIntercept_port(), 10, InetAddress.getByName(potentialProxy.getIntercept_host()));
             potentialProxy.initProxy(proxy_server);
 
-            new Thread(() -> {
+            GEarthThreads.start("G-Earth proxy accept", () -> {
                 try  {
                     Thread.sleep(30);
                     while ((hConnection.getState() == HState.WAITING_FOR_CLIENT) && !proxy_server.isClosed())	{
@@ -107,35 +116,7 @@ public class NormalProxyProvider extends ProxyProvider {
                             closeAllProxies(proxy);
                             if (HConnection.DEBUG) System.out.println("accepted a proxy");
 
-                            new Thread(() -> {
-                                try {
-                                    Socket server;
-                                    if (!useSocks) {
-                                         server = new Socket(proxy.getActual_domain(), proxy.getActual_port());
-                                    }
-                                    else {
-                                        SocksConfiguration configuration = ProxyProviderFactory.getSocksConfig();
-                                        if (configuration == null) {
-                                            showInvalidConnectionError();
-                                            abort();
-                                            return;
-                                        }
-                                        server = configuration.createSocket();
-                                        server.connect(new InetSocketAddress(proxy.getActual_domain(), proxy.getActual_port()), 5000);
-                                    }
-
-                                    startProxyThread(client, server, proxy);
-                                } catch (SocketException | SocketTimeoutException e) {
-                                    // should only happen when SOCKS configured badly
-                                    showInvalidConnectionError();
-                                    abort();
-                                    e.printStackTrace();
-                                }
-                                catch (InterruptedException | IOException e) {
-                                    // TODO Auto-generated catch block
-                                    e.printStackTrace();
-                                }
-                            }).start();
+                            GEarthThreads.start("G-Earth proxy connect", () -> connectToServer(client));
 
 
                         } catch (IOException e1) {
@@ -146,7 +127,7 @@ public class NormalProxyProvider extends ProxyProvider {
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
-            }).start();
+            });
         }
 
 
@@ -154,6 +135,58 @@ public class NormalProxyProvider extends ProxyProvider {
 
     }
 
+    // accepts on the event loops of the NioProxyEngine instead of a thread per potential host
+    private void launchNioListener(HProxy potentialProxy) throws IOException {
+        ServerSocketChannel proxyChannel = ServerSocketChannel.open();
+        proxyChannel.bind(new InetSocketAddress(InetAddress.getByName(potentialProxy.getIntercept_host()), potentialProxy.getIntercept_port()), 10);
+        potentialProxy.initProxy(proxyChannel.socket());
+
+        NioProxyEngine.get().listen(proxyChannel, client -> {
+            if (hConnection.getState() != HState.WAITING_FOR_CLIENT) {
+                client.close();
+                return;
+            }
+
+            proxy = potentialProxy;
+            closeAllProxies(proxy);
+            if (HConnection.DEBUG) System.out.println("accepted a proxy");
+
+            GEarthThreads.start("G-Earth proxy connect", () -> connectToServer(client.socket()));
+        });
+    }
+
+    private void connectToServer(Socket client) {
+        try {
+            Socket server;
+            if (!useSocks) {
+                server = NioProxyEngine.isEnabled() ?
+                        SocketChannel.open(new InetSocketAddress(proxy.getActual_domain(), proxy.getActual_port())).socket() :
+                        new Socket(proxy.getActual_domain(), proxy.getActual_port());
+            }
+            else {
+                SocksConfiguration configuration = ProxyProviderFactory.getSocksConfig();
+                if (configuration == null) {
+                    showInvalidConnectionError();
+                    abort();
+                    return;
+                }
+                server = configuration.createSocket();
+                server.connect(new InetSocketAddress(proxy.getActual_domain(), proxy.getActual_port()), 5000);
+            }
+
+            startProxyThread(client, server, proxy);
+        } catch (SocketException | SocketTimeoutException e) {
+            // should only happen when SOCKS configured badly
+            showInvalidConnectionError();
+            abort();
+            e.printStackTrace();
+        }
+        catch (InterruptedException | IOException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+    }
+
     @Override
     public void abort() {
         stateSetter.setState(HState.ABORTING);
@@ -1,10 +1,13 @@
 package gearth.protocol.connection.proxy;
 
+import gearth.misc.GEarthThreads;
 import gearth.protocol.HConnection;
 import gearth.protocol.connection.HProxy;
 import gearth.protocol.connection.HProxySetter;
 import gearth.protocol.connection.HState;
 import gearth.protocol.connection.HStateSetter;
+import gearth.protocol.connection.proxy.nio.NioConnection;
+import gearth.protocol.connection.proxy.nio.NioProxyEngine;
 import gearth.protocol.memory.Rc4Obtainer;
 import gearth.protocol.packethandler.IncomingPacketHandler;
 import gearth.protocol.packethandler.OutgoingPacketHandler;
@@ -16,6 +19,7 @@ import javafx.scene.layout.Region;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.concurrent.Semaphore;
 
@@ -25,7 +29,7 @@ public abstract class ProxyProvider {
     protected final HStateSetter stateSetter;
     protected final HConnection hConnection;
 
-    private Semaphore abortSemaphore = null;
+    private volatile Runnable abortConnection = null; // set once the connection is verified
 
     public ProxyProvider(HProxySetter proxySetter, HStateSetter stateSetter, HConnection hConnection){
         this.proxySetter = proxySetter;
@@ -34,6 +38,11 @@ public abstract class ProxyProvider {
     }
 
     protected void startProxyThread(Socket client, Socket server, HProxy proxy) throws IOException, InterruptedException {
+        if (NioProxyEngine.isEnabled() && client.getChannel() != null && server.getChannel() != null) {
+            startNioProxy(client.getChannel(), server.getChannel(), proxy);
+            return;
+        }
+
         final boolean[] datastream = new boolean[1];
         server.setTcpNoDelay(true);
         client.setTcpNoDelay(true);
@@ -44,8 +53,8 @@ public abstract class ProxyProvider {
         if (HConnection.DEBUG) System.out.println(server.getLocalAddress().getHostAddress() + ": " + server.getLocalPort());
         Rc4Obtainer rc4Obtainer = new Rc4Obtainer(hConnection);
 
-        OutgoingPacketHandler outgoingHandler = new OutgoingPacketHandler(server.getOutputStream(), hConnection.getTrafficObservables(), hConnection.getExtensionHandler());
-        IncomingPacketHandler incomingHandler = new IncomingPacketHandler(client.getOutputStream(), hConnection.getTrafficObservables(), outgoingHandler, hConnection.getExtensionHandler());
+        OutgoingPacketHandler outgoingHandler = new OutgoingPacketHandler(server.getOutputStream(), hConnection.getTrafficStages(), hConnection.getExtensionHandler());
+        IncomingPacketHandler incomingHandler = new IncomingPacketHandler(client.getOutputStream(), hConnection.getTrafficStages(), outgoingHandler, hConnection.getExtensionHandler());
         rc4Obtainer.setPacketHandlers(outgoingHandler, incomingHandler);
 
         Semaphore abort = new Semaphore(0);
@@ -55,7 +64,7 @@ public abstract class ProxyProvider {
             proxy.verifyProxy(incomingHandler, outgoingHandler, hotelVersion);
             proxySetter.setProxy(proxy);
             datastream[0] = true;
-            abortSemaphore = abort;
+            abortConnection = abort::release;
             onConnect();
         });
 
@@ -77,8 +86,41 @@ public abstract class ProxyProvider {
         }
     }
 
+    // same as above, but both directions are served by the event loops of the NioProxyEngine instead of 2 threads
+    private void startNioProxy(SocketChannel client, SocketChannel server, HProxy proxy) throws IOException {
+        final boolean[] datastream = new boolean[1];
+
+        NioConnection connection = NioProxyEngine.get().connect(client, server);
+        Rc4Obtainer rc4Obtainer = new Rc4Obtainer(hConnection);
+
+        OutgoingPacketHandler outgoingHandler = new OutgoingPacketHandler(connection.getServerOutput(), hConnection.getTrafficStages(), hConnection.getExtensionHandler());
+        IncomingPacketHandler incomingHandler = new IncomingPacketHandler(connection.getClientOutput(), hConnection.getTrafficStages(), outgoingHandler, hConnection.getExtensionHandler());
+        rc4Obtainer.setPacketHandlers(outgoingHandler, incomingHandler);
+
+        outgoingHandler.addOnDatastreamConfirmedListener(hotelVersion -> {
+            incomingHandler.setAsDataStream();
+            proxy.verifyProxy(incomingHandler, outgoingHandler, hotelVersion);
+            proxySetter.setProxy(proxy);
+            datastream[0] = true;
+            abortConnection = connection::close;
+            onConnect();
+        });
+
+        connection.start(
+                outgoingHandler,
+                incomingHandler,
+                () -> hConnection.getState() == HState.WAITING_FOR_CLIENT || hConnection.getState() == HState.CONNECTED,
+                () -> {
+                    if (HConnection.DEBUG) System.out.println("STOP");
+                    if (datastream[0]) {
+                        onConnectEnd();
+                    }
+                }
+        );
+    }
+
     private void handleInputStream(Socket socket, PacketHandler packetHandler, Semaphore abort) {
-        new Thread(() -> {
+        GEarthThreads.start("G-Earth proxy reader", () -> {
             try {
                 int readLength;
                 byte[] buffer = new byte[10000];
@@ -94,14 +136,15 @@ public abstract class ProxyProvider {
             } finally {
                 abort.release();
             }
-        }).start();
+        });
     }
 
 
     public abstract void start() throws IOException;
     public void abort() {
-        if (abortSemaphore != null) {
-            abortSemaphore.release();
+        Runnable abortConnection = this.abortConnection;
+        if (abortConnection != null) {
+            abortConnection.run();
         }
         else {
             stateSetter.setState(HState.NOT_CONNECTED);
@@ -110,10 +153,12 @@ public abstract class ProxyProvider {
 
     protected void onConnect() {
         stateSetter.setState(HState.CONNECTED);
+        if (HConnection.DEBUG) System.out.println("live threads: " + GEarthThreads.getLiveThreadCount() +
+                " (" + GEarthThreads.getLiveVirtualThreadCount() + " virtual)");
     }
     protected void onConnectEnd() {
         proxySetter.setProxy(null);
-        abortSemaphore = null;
+        abortConnection = null;
         stateSetter.setState(HState.NOT_CONNECTED);
     }
 
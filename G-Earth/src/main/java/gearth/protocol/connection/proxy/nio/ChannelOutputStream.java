@@ -0,0 +1,132 @@
+package gearth.protocol.connection.proxy.nio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * OutputStream on top of a non-blocking channel, so the PacketHandlers can stay as they are.
+ *
+ * Whatever the channel doesn't accept right away is queued in pooled buffers and written by the event loop.
+ * Writers never wait, they are often holding a PacketHandler lock the event loop needs as well. Instead, while too
+ * much data is queued, the event loop stops reading from the other side of the connection (the source).
+ */
+class ChannelOutputStream extends OutputStream {
+
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+    private static final int RESUME_PENDING_BYTES = MAX_PENDING_BYTES / 2;
+
+    private final SocketChannel channel;
+    private final NioProxyEngine.EventLoop eventLoop;
+    private final ByteBufferPool bufferPool;
+
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private int pendingBytes = 0;
+    private SelectionKey key = null;
+    private SelectionKey sourceKey = null;
+    private boolean isSourcePaused = false;
+    private boolean closed = false;
+
+    ChannelOutputStream(SocketChannel channel, NioProxyEngine.EventLoop eventLoop, ByteBufferPool bufferPool) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+
+        ByteBuffer source = ByteBuffer.wrap(b, off, len);
+        if (pending.isEmpty()) {
+            channel.write(source);
+            if (!source.hasRemaining()) {
+                return;
+            }
+        }
+
+        while (source.hasRemaining()) {
+            ByteBuffer buffer = bufferPool.acquire();
+            int amount = Math.min(buffer.remaining(), source.remaining());
+            ByteBuffer part = source.duplicate();
+            part.limit(part.position() + amount);
+            buffer.put(part);
+            buffer.flip();
+            source.position(source.position() + amount);
+
+            pending.add(buffer);
+            pendingBytes += amount;
+        }
+
+        if (key != null) {
+            eventLoop.addInterest(key, SelectionKey.OP_WRITE);
+        }
+        if (!isSourcePaused && pendingBytes > MAX_PENDING_BYTES) {
+            isSourcePaused = true;
+            eventLoop.execute(this::updateSourceInterest);
+        }
+    }
+
+    // called on the event loop once the channel is registered
+    synchronized void setKey(SelectionKey key) {
+        this.key = key;
+        if (!pending.isEmpty()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // called on the event loop once the other side is registered, reads from it are paused while this one is behind
+    synchronized void setSourceKey(SelectionKey sourceKey) {
+        this.sourceKey = sourceKey;
+        updateSourceInterest();
+    }
+
+    // called on the event loop, applies the current state so it doesn't matter in which order the updates run
+    private synchronized void updateSourceInterest() {
+        if (sourceKey != null && sourceKey.isValid()) {
+            sourceKey.interestOps(isSourcePaused ?
+                    sourceKey.interestOps() & ~SelectionKey.OP_READ :
+                    sourceKey.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    // called on the event loop when the channel is writable
+    synchronized void flushPending() throws IOException {
+        while (!pending.isEmpty()) {
+            ByteBuffer buffer = pending.peek();
+            pendingBytes -= channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            bufferPool.release(pending.poll());
+        }
+
+        if (pending.isEmpty() && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+        if (isSourcePaused && pendingBytes <= RESUME_PENDING_BYTES) {
+            isSourcePaused = false;
+            updateSourceInterest();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        ByteBuffer buffer;
+        while ((buffer = pending.poll()) != null) {
+            bufferPool.release(buffer);
+        }
+        pendingBytes = 0;
+    }
+}
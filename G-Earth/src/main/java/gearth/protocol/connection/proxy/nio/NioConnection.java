@@ -0,0 +1,139 @@
+package gearth.protocol.connection.proxy.nio;
+
+import gearth.misc.GEarthThreads;
+import gearth.protocol.packethandler.PacketHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A proxied connection between the client and the server, both directions are served by the same event loop.
+ */
+public class NioConnection {
+
+    private final NioProxyEngine engine;
+    private final NioProxyEngine.EventLoop eventLoop;
+    private final SocketChannel client;
+    private final SocketChannel server;
+    private final ChannelOutputStream clientOutput;
+    private final ChannelOutputStream serverOutput;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile Runnable onClose = null;
+
+    NioConnection(NioProxyEngine engine, NioProxyEngine.EventLoop eventLoop, SocketChannel client, SocketChannel server) throws IOException {
+        this.engine = engine;
+        this.eventLoop = eventLoop;
+        this.client = client;
+        this.server = server;
+
+        client.configureBlocking(false);
+        server.configureBlocking(false);
+        client.socket().setTcpNoDelay(true);
+        server.socket().setTcpNoDelay(true);
+
+        clientOutput = new ChannelOutputStream(client, eventLoop, engine.getBufferPool());
+        serverOutput = new ChannelOutputStream(server, eventLoop, engine.getBufferPool());
+    }
+
+    // stream towards the client, for the IncomingPacketHandler
+    public OutputStream getClientOutput() {
+        return clientOutput;
+    }
+
+    // stream towards the server, for the OutgoingPacketHandler
+    public OutputStream getServerOutput() {
+        return serverOutput;
+    }
+
+    /**
+     * Starts reading from both sides
+     * @param keepOpen checked on every read, the connection gets closed once it returns false
+     * @param onClose runs on its own thread once either side has been closed
+     */
+    public void start(PacketHandler outgoingHandler, PacketHandler incomingHandler, BooleanSupplier keepOpen, Runnable onClose) {
+        this.onClose = onClose;
+        eventLoop.execute(() -> {
+            SelectionKey clientKey = register(client, clientOutput, outgoingHandler, keepOpen);
+            SelectionKey serverKey = register(server, serverOutput, incomingHandler, keepOpen);
+
+            // what's read from one side is written to the other one
+            if (clientKey != null && serverKey != null) {
+                serverOutput.setSourceKey(clientKey);
+                clientOutput.setSourceKey(serverKey);
+            }
+        });
+    }
+
+    // returns null if the channel couldn't be registered, the connection is closed then
+    private SelectionKey register(SocketChannel channel, ChannelOutputStream output, PacketHandler packetHandler, BooleanSupplier keepOpen) {
+        try {
+            SelectionKey key = channel.register(eventLoop.getSelector(), SelectionKey.OP_READ, (NioProxyEngine.SelectionHandler) selectionKey -> {
+                try {
+                    if (selectionKey.isWritable()) {
+                        output.flushPending();
+                    }
+                    if (selectionKey.isReadable()) {
+                        read(channel, packetHandler, keepOpen);
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    close();
+                }
+            });
+            output.setKey(key);
+            return key;
+        } catch (IOException e) {
+            close();
+            return null;
+        }
+    }
+
+    private void read(SocketChannel channel, PacketHandler packetHandler, BooleanSupplier keepOpen) throws IOException {
+        ByteBuffer buffer = engine.getBufferPool().acquire();
+        try {
+            int readLength = channel.read(buffer);
+            if (readLength == -1 || !keepOpen.getAsBoolean()) {
+                close();
+            }
+            else if (readLength > 0) {
+                buffer.flip();
+                byte[] data = new byte[readLength];
+                buffer.get(data);
+                packetHandler.act(data);
+            }
+        }
+        finally {
+            engine.getBufferPool().release(buffer);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            clientOutput.close();
+            serverOutput.close();
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+            try {
+                server.close();
+            } catch (IOException ignored) {
+            }
+
+            Runnable onClose = this.onClose;
+            if (onClose != null) {
+                GEarthThreads.start("G-Earth proxy close", onClose);
+            }
+        }
+    }
+}
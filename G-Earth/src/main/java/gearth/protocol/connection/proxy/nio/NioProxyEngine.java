@@ -0,0 +1,167 @@
+package gearth.protocol.connection.proxy.nio;
+
+import gearth.Main;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opt-in alternative for the blocking proxy threads (start G-Earth with --nio-proxy).
+ *
+ * A small fixed set of event loops handles every listening socket and both directions of every proxied
+ * connection. Bytes read from a channel are fed to the PacketHandler on the event loop thread.
+ */
+public class NioProxyEngine {
+
+    public static final String NIO_PROXY_FLAG = "--nio-proxy";
+
+    public static boolean isEnabled() {
+        return Main.hasFlag(NIO_PROXY_FLAG);
+    }
+
+    private static NioProxyEngine instance = null;
+    public static synchronized NioProxyEngine get() throws IOException {
+        if (instance == null) {
+            instance = new NioProxyEngine(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+        }
+        return instance;
+    }
+
+
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger(0);
+    private final ByteBufferPool bufferPool = new ByteBufferPool(16384, 64);
+
+    private NioProxyEngine(int threads) throws IOException {
+        eventLoops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            eventLoops[i] = new EventLoop("G-Earth NIO proxy " + i);
+        }
+    }
+
+    EventLoop nextEventLoop() {
+        return eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+    }
+
+    ByteBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Accepts clients on the event loops, stops when the server channel gets closed
+     */
+    public void listen(ServerSocketChannel serverChannel, AcceptListener listener) throws IOException {
+        serverChannel.configureBlocking(false);
+        EventLoop eventLoop = nextEventLoop();
+        eventLoop.register(serverChannel, SelectionKey.OP_ACCEPT, key -> {
+            SocketChannel client;
+            while ((client = serverChannel.accept()) != null) {
+                listener.accepted(client);
+            }
+        });
+    }
+
+    /**
+     * Wraps an established client and server connection, call NioConnection.start() once the packet handlers are set up
+     */
+    public NioConnection connect(SocketChannel client, SocketChannel server) throws IOException {
+        return new NioConnection(this, nextEventLoop(), client, server);
+    }
+
+
+    public interface AcceptListener {
+        void accepted(SocketChannel client) throws IOException;
+    }
+
+    interface SelectionHandler {
+        void handle(SelectionKey key) throws IOException;
+    }
+
+    static class EventLoop {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+
+        EventLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Selector getSelector() {
+            return selector;
+        }
+
+        boolean inEventLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        void execute(Runnable task) {
+            if (inEventLoop()) {
+                task.run();
+            }
+            else {
+                tasks.add(task);
+                selector.wakeup();
+            }
+        }
+
+        void register(SelectableChannel channel, int ops, SelectionHandler handler) {
+            execute(() -> {
+                try {
+                    channel.register(selector, ops, handler);
+                } catch (ClosedChannelException ignored) {
+                }
+            });
+        }
+
+        void addInterest(SelectionKey key, int ops) {
+            execute(() -> {
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() | ops);
+                }
+            });
+        }
+
+        private void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext()) {
+                        SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
+
+                        if (!key.isValid()) {
+                            continue;
+                        }
+
+                        try {
+                            ((SelectionHandler) key.attachment()).handle(key);
+                        } catch (IOException | CancelledKeyException e) {
+                            key.cancel();
+                            try {
+                                key.channel().close();
+                            } catch (IOException ignored) {
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
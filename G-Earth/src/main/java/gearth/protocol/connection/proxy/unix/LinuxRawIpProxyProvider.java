@@ -1,5 +1,6 @@
 package gearth.protocol.connection.proxy.unix;
 
+import gearth.misc.GEarthThreads;
 import gearth.protocol.HConnection;
 import gearth.protocol.connection.HProxy;
 import gearth.protocol.connection.HProxySetter;
@@ -47,7 +48,7 @@ public class LinuxRawIpProxyProvider extends ProxyProvider {
     }
 
     private void launchMITM() {
-        new Thread(() -> {
+        GEarthThreads.start("G-Earth raw IP proxy accept", () -> {
             try  {
                 stateSetter.setState(HState.PREPARING);
                 proxy = new HProxy(input_host, input_host, input_port, input_port, "0.0.0.0");
@@ -74,13 +75,13 @@ public class LinuxRawIpProxyProvider extends ProxyProvider {
 
                         if (HConnection.DEBUG) System.out.println("accepted a proxy");
 
-                        new Thread(() -> {
+                        GEarthThreads.start("G-Earth raw IP proxy connect", () -> {
                             try {
                                 createProxyThread(client);
                             } catch (InterruptedException | IOException e) {
                                 e.printStackTrace();
                             }
-                        }).start();
+                        });
 
                     } catch (IOException ignored) {
                     }
@@ -91,7 +92,7 @@ public class LinuxRawIpProxyProvider extends ProxyProvider {
             } catch (Exception e) {
                 e.printStackTrace();
             }
-        }).start();
+        });
     }
 
     @Override
@@ -1,6 +1,7 @@
 package gearth.protocol.connection.proxy.windows;
 
 import gearth.misc.Cacher;
+import gearth.misc.GEarthThreads;
 import gearth.protocol.HConnection;
 import gearth.protocol.connection.HProxy;
 import gearth.protocol.connection.HProxySetter;
@@ -73,14 +74,14 @@ public class WindowsRawIpProxyProvider extends LinuxRawIpProxyProvider {
 
     // let other G-Earth instances know you're connected
     private void addMappingCache() {
-        new Thread(() -> {
+        GEarthThreads.start("G-Earth raw IP mapping cache", () -> {
             while (hasMapped) {
                 updateMappingCache();
                 try {
                     Thread.sleep(55000);
                 } catch (InterruptedException ignored) {}
             }
-        }).start();
+        });
     }
 
     // checks if no G-Earth instances are connected
@@ -180,15 +180,44 @@ public class RC4 {
         return result;
     }
 
+    /**
+     * RC4 encryption/decryption, overwrites the given range of the buffer
+     *
+     * @param buf  the data to be encrypted/decrypted
+     * @param offset  start of the range
+     * @param length  length of the range
+     */
+    public void rc4InPlace(byte[] buf, int offset, int length) {
+
+        byte tmp;
+
+        for (int i = offset; i < offset + length; i++) {
+
+            x = (x + 1) & 0xff;
+            y = ((state[x] & 0xff) + y) & 0xff;
+
+            tmp = state[x];
+            state[x] = state[y];
+            state[y] = tmp;
+
+            buf[i] ^= state[((state[x] & 0xff) + (state[y] & 0xff)) & 0xff];
+        }
+    }
+
     public boolean couldBeFresh() {
         return (x == 0 && y == 0);
     }
 
     public void undoRc4(byte[] buf) {
+        undoRc4(buf.length);
+    }
+
+    // moves the cipher back by the given amount of bytes
+    public void undoRc4(int length) {
 
         byte tmp;
 
-        for (int i = buf.length - 1; i >= 0; i--) {
+        for (int i = length - 1; i >= 0; i--) {
 
             tmp = state[x];
             state[x] = state[y];
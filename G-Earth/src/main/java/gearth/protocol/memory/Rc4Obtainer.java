@@ -1,9 +1,9 @@
 package gearth.protocol.memory;
 
 import gearth.Main;
+import gearth.misc.GEarthThreads;
 import gearth.protocol.HConnection;
 import gearth.protocol.HMessage;
-import gearth.protocol.HPacket;
 import gearth.protocol.crypto.RC4;
 import gearth.protocol.memory.habboclient.HabboClient;
 import gearth.protocol.memory.habboclient.HabboClientFactory;
@@ -17,8 +17,12 @@ import javafx.scene.layout.FlowPane;
 import javafx.scene.layout.Region;
 import javafx.scene.web.WebView;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Rc4Obtainer {
 
@@ -58,7 +62,7 @@ public class Rc4Obtainer {
 
         packetHandlers.forEach(PacketHandler::block);
 
-        new Thread(() -> {
+        GEarthThreads.start("G-Earth RC4 search", () -> {
 
             long startTime = System.currentTimeMillis();
             if (DEBUG) System.out.println("[+] send encrypted");
@@ -108,46 +112,145 @@ public class Rc4Obtainer {
             }
 
             packetHandlers.forEach(PacketHandler::unblock);
-        }).start();
+        });
     }
 
     private boolean onSendFirstEncryptedMessage(PacketHandler packetHandler, List<byte[]> potentialRC4tables) {
-        for (byte[] possible : potentialRC4tables) {
+        ByteBacklog.Snapshot encBuffer = packetHandler.getEncryptedBuffer();
+        if (encBuffer == null) {
+            return false;
+        }
 
-            byte[] encBuffer = new byte[packetHandler.getEncryptedBuffer().size()];
-            for (int i = 0; i < encBuffer.length; i++) {
-                encBuffer[i] = packetHandler.getEncryptedBuffer().get(i);
+        List<byte[]> tables = new ArrayList<>(potentialRC4tables.size());
+        for (byte[] possible : potentialRC4tables) {
+            if (possible.length == 256) {
+                tables.add(possible);
             }
+        }
 
-            for (int i = 0; i < 256; i++) {
-                for (int j = 0; j < 256; j++) {
-                    byte[] keycpy = Arrays.copyOf(possible, possible.length);
-                    RC4 rc4Tryout = new RC4(keycpy, i, j);
+        boolean isOutgoing = packetHandler.getMessageSide() == HMessage.Direction.TOSERVER;
+        AtomicReference<Found> found = new AtomicReference<>();
+        ForkJoinPool.commonPool().invoke(new TableSearch(tables, encBuffer, isOutgoing, found,
+                0, tables.size() * (isOutgoing ? 256 : 1)));
 
-                    if (packetHandler.getMessageSide() == HMessage.Direction.TOSERVER) rc4Tryout.undoRc4(encBuffer);
-                    if (rc4Tryout.couldBeFresh()) {
-                        byte[] encDataCopy = Arrays.copyOf(encBuffer, encBuffer.length);
-                        RC4 rc4TryCopy = rc4Tryout.deepCopy();
+        if (found.get() != null) {
+            packetHandler.setRc4(found.get().rc4);
+            return true;
+        }
+        return false;
+    }
 
-                        try {
-                            PayloadBuffer payloadBuffer = new PayloadBuffer();
-                            byte[] decoded = rc4TryCopy.rc4(encDataCopy);
-                            HPacket[] checker = payloadBuffer.pushAndReceive(decoded);
+    /**
+     * Looks for the table and (x, y) the encrypted buffer starts with: undoing the buffer (only for outgoing
+     * data, the incoming cipher has to be fresh already) must give a fresh cipher, and decrypting must give whole packets.
+     *
+     * For outgoing data, undoing the buffer must end at x = 0, so x is known and only y is tried (256 tries per table).
+     * For incoming data, only x = y = 0 can be fresh (1 try per table).
+     * The tries are split over the fork-join pool. Wrong guesses for y can give nearly the same keystream and
+     * pass as well, so like a sequential search the first try that works wins: once one is found,
+     * only the tries before it are still done.
+     */
+    private static class TableSearch extends RecursiveAction {
+
+        private static final int TRIES_PER_TASK = 32;
+
+        private final List<byte[]> tables;
+        private final ByteBacklog.Snapshot encrypted;
+        private final boolean isOutgoing;
+        private final AtomicReference<Found> found;
+        private final int from;
+        private final int to;
+
+        private TableSearch(List<byte[]> tables, ByteBacklog.Snapshot encrypted, boolean isOutgoing, AtomicReference<Found> found, int from, int to) {
+            this.tables = tables;
+            this.encrypted = encrypted;
+            this.isOutgoing = isOutgoing;
+            this.found = found;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (from >= firstFound()) {
+                return;
+            }
+            if (to - from > TRIES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(
+                        new TableSearch(tables, encrypted, isOutgoing, found, from, middle),
+                        new TableSearch(tables, encrypted, isOutgoing, found, middle, to)
+                );
+                return;
+            }
+
+            // reused for every try of this task
+            byte[] state = new byte[256];
+            byte[] decrypted = new byte[encrypted.length()];
 
-                            if (payloadBuffer.peak().length == 0) {
-                                packetHandler.setRc4(rc4Tryout);
-                                return true;
-                            }
+            for (int i = from; i < to && i < firstFound(); i++) {
+                byte[] table = tables.get(isOutgoing ? i >>> 8 : i);
+                int x = isOutgoing ? encrypted.length() & 0xff : 0;
+                int y = isOutgoing ? i & 0xff : 0;
 
-                        } catch (Exception e) {
-//                                e.printStackTrace();
-                        }
+                System.arraycopy(table, 0, state, 0, 256);
+                RC4 rc4Tryout = new RC4(state, x, y);
+                if (isOutgoing) {
+                    rc4Tryout.undoRc4(encrypted.length());
+                }
 
+                if (rc4Tryout.couldBeFresh()) {
+                    RC4 fresh = rc4Tryout.deepCopy();
+                    if (decryptsToPackets(rc4Tryout, decrypted)) {
+                        Found result = new Found(i, fresh);
+                        Found current;
+                        while (((current = found.get()) == null || current.index > i) && !found.compareAndSet(current, result));
                     }
+                }
+            }
+        }
 
+        private int firstFound() {
+            Found current = found.get();
+            return current == null ? Integer.MAX_VALUE : current.index;
+        }
+
+        // decrypts packet by packet, and gives up at the first length that doesn't make sense
+        private boolean decryptsToPackets(RC4 rc4, byte[] decrypted) {
+            if (decrypted.length == 0) {
+                return true;
+            }
+            if (decrypted.length < 6) {
+                return false;
+            }
+
+            encrypted.copyTo(0, decrypted, 0, decrypted.length);
+            int offset = 0;
+            while (offset + 4 <= decrypted.length) {
+                rc4.rc4InPlace(decrypted, offset, 4);
+                int length = ((decrypted[offset] & 0xff) << 24) |
+                        ((decrypted[offset + 1] & 0xff) << 16) |
+                        ((decrypted[offset + 2] & 0xff) << 8) |
+                        (decrypted[offset + 3] & 0xff);
+
+                // every packet has a header id
+                if (length < 2 || length > decrypted.length - offset - 4) {
+                    return false;
                 }
+                rc4.rc4InPlace(decrypted, offset + 4, length);
+                offset += 4 + length;
             }
+            return offset == decrypted.length;
+        }
+    }
+
+    private static class Found {
+        private final int index;
+        private final RC4 rc4;
+
+        private Found(int index, RC4 rc4) {
+            this.index = index;
+            this.rc4 = rc4;
         }
-        return false;
     }
 }
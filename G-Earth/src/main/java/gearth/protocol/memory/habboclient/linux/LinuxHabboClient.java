@@ -1,11 +1,25 @@
 package gearth.protocol.memory.habboclient.linux;
 
+import gearth.misc.Cacher;
 import gearth.protocol.HConnection;
 import gearth.protocol.memory.habboclient.HabboClient;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class LinuxHabboClient extends HabboClient {
 
@@ -24,6 +38,14 @@ public class LinuxHabboClient extends HabboClient {
 
     private static final boolean DEBUG = false;
 
+    // per pid, the memory maps and offsets where RC4 candidates were found (see getRC4cached)
+    private static final String REGIONS_CACHE_KEY = "LinuxRC4Regions";
+    private static final int MAX_CACHED_OFFSETS = 64;
+
+    // the memory maps are scanned by a few workers, each reading through a reused buffer of this size
+    private static final int MAX_SCAN_WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final int SCAN_CHUNK_SIZE = 1 << 20;
+
     public LinuxHabboClient(HConnection connection) {
         super(connection);
 
@@ -56,9 +78,119 @@ public class LinuxHabboClient extends HabboClient {
         if (DEBUG) System.out.println("* Found flashclient " + potentialProcesses.size() + " potential processes");
     }
 
+    /**
+     * The RC4 table is looked for in the memory maps where candidates were found last time for this process, if any.
+     * Candidates at the same offsets as last time come first
+     */
     @Override
     public List<byte[]> getRC4cached() {
-        return new ArrayList<>();
+        List<byte[]> resultSet = new ArrayList<>();
+        JSONObject cache = getRegionsCache();
+
+        for (PotentialHabboProcess process : potentialProcesses) {
+            String key = process.PID + "";
+            if (!cache.has(key)) {
+                continue;
+            }
+            JSONObject entry = cache.getJSONObject(key);
+            if (!entry.optString("boot").equals(readBootId()) || entry.optLong("start", -1) != readStartTime(process.PID)) {
+                continue; // not the process this was cached for
+            }
+
+            PID = process.PID;
+            refreshMemoryMaps();
+
+            Set<Long> cachedRegions = new HashSet<>();
+            for (Object region : entry.getJSONArray("regions")) {
+                cachedRegions.add(Long.parseLong((String) region, 16));
+            }
+            Set<Long> cachedOffsets = new HashSet<>();
+            for (Object offset : entry.getJSONArray("offsets")) {
+                cachedOffsets.add(Long.parseLong((String) offset, 16));
+            }
+
+            List<long[]> regions = new ArrayList<>();
+            for (long[] map : maps) {
+                if (cachedRegions.contains(map[0])) {
+                    regions.add(map);
+                }
+            }
+
+            List<LinuxMemorySnippet> possibilities = createMemorySnippetListForRC4(regions);
+            fetchMemory(possibilities);
+
+            List<Long> offsets = new ArrayList<>();
+            List<byte[]> tables = extractRC4Tables(possibilities, offsets);
+            for (int i = 0; i < tables.size(); i++) {
+                if (cachedOffsets.contains(offsets.get(i))) {
+                    resultSet.add(tables.get(i));
+                }
+            }
+            for (int i = 0; i < tables.size(); i++) {
+                if (!cachedOffsets.contains(offsets.get(i))) {
+                    resultSet.add(tables.get(i));
+                }
+            }
+        }
+
+        if (DEBUG) System.out.println("* Found " + resultSet.size() + " cached RC4 candidates");
+        return resultSet;
+    }
+
+    private static JSONObject getRegionsCache() {
+        Object cache = Cacher.get(REGIONS_CACHE_KEY);
+        return cache instanceof JSONObject ? (JSONObject) cache : new JSONObject();
+    }
+
+    // remembers where the candidates were found, entries of processes that are gone are dropped
+    private void cacheRegions(int pid, List<Long> offsets) {
+        JSONObject cache = getRegionsCache();
+        for (String key : new ArrayList<>(cache.keySet())) {
+            if (!new File("/proc/" + key).isDirectory()) {
+                cache.remove(key);
+            }
+        }
+
+        JSONArray regions = new JSONArray();
+        JSONArray offsetsJson = new JSONArray();
+        Set<Long> added = new HashSet<>();
+        for (int i = 0; i < offsets.size() && i < MAX_CACHED_OFFSETS; i++) {
+            long offset = offsets.get(i);
+            offsetsJson.put(Long.toHexString(offset));
+            for (long[] map : maps) {
+                if (offset >= map[0] && offset < map[1] && added.add(map[0])) {
+                    regions.put(Long.toHexString(map[0]));
+                }
+            }
+        }
+
+        JSONObject entry = new JSONObject();
+        entry.put("boot", readBootId());
+        entry.put("start", readStartTime(pid));
+        entry.put("regions", regions);
+        entry.put("offsets", offsetsJson);
+        cache.put(pid + "", entry);
+        Cacher.put(REGIONS_CACHE_KEY, cache);
+    }
+
+    // pids get reused, the start time (since boot) tells processes apart
+    private static long readStartTime(int pid) {
+        try {
+            String stat = new String(Files.readAllBytes(Paths.get("/proc/" + pid + "/stat")));
+            // fields after the process name, which can contain spaces, starttime is field 22
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return Long.parseLong(fields[19]);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static String readBootId() {
+        try {
+            return Files.readAllLines(Paths.get("/proc/sys/kernel/random/boot_id")).get(0).trim();
+        } catch (Exception e) {
+            return "";
+        }
     }
 
 
@@ -149,138 +281,263 @@ public class LinuxHabboClient extends HabboClient {
     }
 
     public List<byte[]> getRC4possibilities() {
-
-        int offset = 4;
         List<byte[]> resultSet = new ArrayList<>();
 
         for (PotentialHabboProcess process : potentialProcesses) {
             PID = process.PID;
-            maps = process.maps;
+            refreshMemoryMaps();
 
-            List<LinuxMemorySnippet> possibilities = createMemorySnippetListForRC4();
+            List<LinuxMemorySnippet> possibilities = createMemorySnippetListForRC4(maps);
             fetchMemory(possibilities);
 
-            for (LinuxMemorySnippet snippet : possibilities) {
-                if (snippet.getData().length >= 1024 && snippet.getData().length <= 1024+2*offset) {
-                    for (int i = 0; i < (snippet.getData().length - ((256 - 1) * offset)); i+=offset) {
-                        byte[] wannabeRC4data = Arrays.copyOfRange(snippet.getData(), i, 1024 + i);
-                        byte[] data = new byte[256]; // dis is the friggin key
-
-                        boolean isvalid = true;
-                        for (int j = 0; j < 1024; j++) {
-                            if (j % 4 != 0 && wannabeRC4data[j] != 0) {
-                                isvalid = false;
-                                break;
-                            }
-                            if (j % 4 == 0) {
-                                data[j/4] = wannabeRC4data[j];
-                            }
+            List<Long> offsets = new ArrayList<>();
+            resultSet.addAll(extractRC4Tables(possibilities, offsets));
+            if (!offsets.isEmpty()) {
+                cacheRegions(process.PID, offsets);
+            }
+        }
+        return resultSet;
+    }
+
+    // the address of every table that is returned gets added to offsets
+    private static List<byte[]> extractRC4Tables(List<LinuxMemorySnippet> possibilities, List<Long> offsets) {
+        int offset = 4;
+        List<byte[]> resultSet = new ArrayList<>();
+
+        for (LinuxMemorySnippet snippet : possibilities) {
+            if (snippet.getData().length >= 1024 && snippet.getData().length <= 1024+2*offset) {
+                for (int i = 0; i < (snippet.getData().length - ((256 - 1) * offset)); i+=offset) {
+                    byte[] wannabeRC4data = Arrays.copyOfRange(snippet.getData(), i, 1024 + i);
+                    byte[] data = new byte[256]; // dis is the friggin key
+
+                    boolean isvalid = true;
+                    for (int j = 0; j < 1024; j++) {
+                        if (j % 4 != 0 && wannabeRC4data[j] != 0) {
+                            isvalid = false;
+                            break;
                         }
-                        if (isvalid) {
-                            resultSet.add(data);
+                        if (j % 4 == 0) {
+                            data[j/4] = wannabeRC4data[j];
                         }
                     }
+                    if (isvalid) {
+                        resultSet.add(data);
+                        offsets.add(snippet.getOffset() + i);
+                    }
                 }
             }
         }
         return resultSet;
     }
 
-    private List<LinuxMemorySnippet> createMemorySnippetListForRC4() {
+    private List<LinuxMemorySnippet> createMemorySnippetListForRC4(List<long[]> maps) {
+        String memoryPath = "/proc/" + PID + "/mem";
 
-        Object lock = new Object();
+        List<LinuxMemorySnippet> result = new ArrayList<>();
+        if (maps.isEmpty()) {
+            return result;
+        }
 
-        refreshMemoryMaps();
-        String memoryPath = "/proc/" + PID + "/mem";
+        int workers = Math.min(maps.size(), MAX_SCAN_WORKERS);
+        // CPU-bound, so always platform threads (not GEarthThreads, which can make them virtual)
+        AtomicInteger workerCount = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(workers, task -> {
+            Thread thread = new Thread(task, "G-Earth memory scan-" + workerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try (FileChannel memory = FileChannel.open(Paths.get(memoryPath), StandardOpenOption.READ)) {
+            // every worker takes the next map until none are left, and reuses its chunk buffer for all of them
+            AtomicInteger nextMap = new AtomicInteger(0);
+            List<Callable<List<LinuxMemorySnippet>>> tasks = new ArrayList<>();
+            for (int w = 0; w < workers; w++) {
+                tasks.add(() -> {
+                    List<LinuxMemorySnippet> found = new ArrayList<>();
+                    ByteBuffer chunk = ByteBuffer.allocate(SCAN_CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                    int m;
+                    while ((m = nextMap.getAndIncrement()) < maps.size()) {
+                        scanForRC4(memory, maps.get(m)[0], maps.get(m)[1], chunk, found);
+                    }
+                    return found;
+                });
+            }
 
-        int[] count = {0};
+            for (Future<List<LinuxMemorySnippet>> future : executor.invokeAll(tasks)) {
+                result.addAll(future.get());
+            }
+        }
+        catch (IOException | InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+        finally {
+            executor.shutdownNow();
+        }
 
-        List<LinuxMemorySnippet> result = new ArrayList<>();
-        for (long[] map : maps) {
-            new Thread(() -> {
-                int offset = 4;
-                long start = map[0];
-                long end = map[1];
-
-                byte[] data = new byte[(int)(end - start)];
-                try {
-                    RandomAccessFile raf = new RandomAccessFile(memoryPath, "r");
-                    raf.seek(start);
-                    raf.read(data);
-                    raf.close();
-                }
-                catch (Exception e) {
-                    e.printStackTrace();
-                }
+        result.sort(Comparator.comparingLong(LinuxMemorySnippet::getOffset));
+        return result;
+    }
 
+    // reads the region chunk by chunk, unreadable parts end the region
+    private static void scanForRC4(FileChannel memory, long start, long end, ByteBuffer chunk, List<LinuxMemorySnippet> found) {
+        RC4TableScanner scanner = new RC4TableScanner(start, found);
 
-                int maskCount = 0;
-                int[] nToMap = new int[256];
-                int[] removeMap = new int[256];
-                for (int i = 0; i < removeMap.length; i++) {
-                    removeMap[i] = -1;
-                    nToMap[i] = -1;
+        long position = start;
+        try {
+            while (position < end) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), end - position));
+                while (chunk.hasRemaining()) {
+                    if (memory.read(chunk, position + chunk.position()) <= 0) {
+                        break;
+                    }
+                }
+                if (chunk.position() == 0) {
+                    break;
                 }
 
+                scanner.scan(chunk, chunk.position());
+                position += chunk.position();
+                if (chunk.hasRemaining()) {
+                    break;
+                }
+            }
+        }
+        catch (IOException e) {
+            if (DEBUG) e.printStackTrace();
+        }
 
-                int matchStart = -1;
-                int matchEnd = -1;
-
-                for (int i = 0; i < data.length; i+=offset) {
-                    int b = (((int)data[i]) + 128) % 256;
-                    int indInMap = (i/4) % 256;
+        scanner.finish();
+    }
 
-                    int deletedNumber = removeMap[indInMap];
-                    if (deletedNumber != -1) {
-                        nToMap[deletedNumber] = -1;
-                        maskCount --;
-                        removeMap[indInMap] = -1;
-                    }
+    /**
+     * RC4 tables are kept as 256 ints, this looks for 256 consecutive ints of which the lowest bytes are all different
+     * and the other (padding) bytes are all zero. Matches that overlap are merged into one snippet.
+     * The window carries over from one chunk to the next.
+     * Package-private for RC4ScanBenchmark.
+     */
+    static class RC4TableScanner {
+        private static final int OFFSET = 4;
+
+        // the padding bytes of a little endian int, and of both ints in a little endian long
+        private static final int PADDING = 0xFFFFFF00;
+        private static final long PADDING_LOW = 0xFFFFFF00L;
+        private static final long PADDING_HIGH = PADDING_LOW << 32;
+
+        private final long regionStart;
+        private final List<LinuxMemorySnippet> found;
+
+        // the window only holds ints of the current run of ints without padding
+        private int maskCount = 0;
+        private final int[] nToMap = new int[256];
+        private final int[] removeMap = new int[256];
+        private long runLength = 0;
+
+        private long matchStart = -1;
+        private long matchEnd = -1;
+        private long scanned = 0; // offset in the region of the next chunk
+
+        RC4TableScanner(long regionStart, List<LinuxMemorySnippet> found) {
+            this.regionStart = regionStart;
+            this.found = found;
+            Arrays.fill(nToMap, -1);
+            Arrays.fill(removeMap, -1);
+        }
 
-                    if (nToMap[b] == -1) {
-                        maskCount ++;
-                        removeMap[indInMap] = b;
-                        nToMap[b] = indInMap;
+        // the chunk continues where the previous one ended, and must be in little endian order
+        // chunks are expected to be a multiple of 4 bytes long (except for the last), ints split over two chunks are skipped
+        void scan(ByteBuffer data, int length) {
+            // only ints that start at every 4th byte (of the region) are looked at
+            int j = (int) ((OFFSET - scanned % OFFSET) % OFFSET);
+
+            while (j + OFFSET <= length) {
+                if (runLength == 0) {
+                    // outside of a run, skip ints with padding two at a time, no table can contain them
+                    while (j + 2 * OFFSET <= length) {
+                        long pair = data.getLong(j);
+                        if ((pair & PADDING_LOW) == 0 || (pair & PADDING_HIGH) == 0) {
+                            break;
+                        }
+                        j += 2 * OFFSET;
                     }
-                    else {
-                        removeMap[nToMap[b]] = -1;
-                        removeMap[indInMap] = b;
-                        nToMap[b] = indInMap;
+                    if (j + OFFSET > length) {
+                        break;
                     }
+                }
 
-                    if (maskCount == 256) {
-                        if (matchStart == -1) {
-                            matchStart = i - ((256 - 1) * offset);
-                            matchEnd = i;
-                        }
+                int value = data.getInt(j);
+                long i = scanned + j;
+                j += OFFSET;
 
-                        if (matchEnd < i - ((256 - 1) * offset)) {
-                            result.add(new LinuxMemorySnippet(start + matchStart, new byte[matchEnd - matchStart + 4]));
-                            matchStart = i - ((256 - 1) * offset);
-                        }
-                        matchEnd = i;
-                    }
+                if ((value & PADDING) != 0) {
+                    endRun(i);
+                }
+                else {
+                    runLength++;
+                    add(value, i);
+                }
+            }
+
+            scanned += length;
+        }
 
+        // removes the ints of the run that ends before offset i from the window
+        private void endRun(long i) {
+            for (long k = 1; k <= Math.min(runLength, 256); k++) {
+                int indInMap = (int) (((i / 4) - k) % 256);
+                int deletedNumber = removeMap[indInMap];
+                if (deletedNumber != -1) {
+                    nToMap[deletedNumber] = -1;
+                    maskCount --;
+                    removeMap[indInMap] = -1;
                 }
+            }
+            runLength = 0;
+        }
 
-                synchronized (lock) {
-                    if (matchStart != -1) {
-                        result.add(new LinuxMemorySnippet(start + matchStart, new byte[matchEnd - matchStart + 4]));
-                    }
-                    count[0] ++;
+        private void add(int b, long i) {
+            int indInMap = (int) ((i / 4) % 256);
+
+            int deletedNumber = removeMap[indInMap];
+            if (deletedNumber != -1) {
+                nToMap[deletedNumber] = -1;
+                maskCount --;
+                removeMap[indInMap] = -1;
+            }
+
+            if (nToMap[b] == -1) {
+                maskCount ++;
+                removeMap[indInMap] = b;
+                nToMap[b] = indInMap;
+            }
+            else {
+                removeMap[nToMap[b]] = -1;
+                removeMap[indInMap] = b;
+                nToMap[b] = indInMap;
+            }
+
+            if (maskCount == 256) {
+                if (matchStart == -1) {
+                    matchStart = i - ((256 - 1) * OFFSET);
+                    matchEnd = i;
                 }
 
-            }).start();
+                if (matchEnd < i - ((256 - 1) * OFFSET)) {
+                    addMatch();
+                    matchStart = i - ((256 - 1) * OFFSET);
+                }
+                matchEnd = i;
+            }
         }
 
-        while (count[0] < maps.size()) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        void finish() {
+            if (matchStart != -1) {
+                addMatch();
             }
         }
 
-        return result;
+        private void addMatch() {
+            found.add(new LinuxMemorySnippet(regionStart + matchStart, new byte[(int) (matchEnd - matchStart + 4)]));
+        }
     }
 }
@@ -22,10 +22,8 @@ public class WindowsHabboClient extends HabboClient {
     public WindowsHabboClient(HConnection connection) {
         super(connection);
 
-        connection.addTrafficListener(0, message -> {
-            if (message.getDestination() == HMessage.Direction.TOSERVER && message.getPacket().headerId() == PRODUCTION_ID) {
-                production = message.getPacket().readString();
-            }
+        connection.addTrafficListener(0, HMessage.Direction.TOSERVER, PRODUCTION_ID, message -> {
+            production = message.getPacket().readString();
         });
     }
 
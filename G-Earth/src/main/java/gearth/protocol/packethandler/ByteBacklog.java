@@ -0,0 +1,80 @@
+package gearth.protocol.packethandler;
+
+import java.util.Arrays;
+
+/**
+ * Bytes that are kept until they can be handled, like the encrypted traffic before the RC4 table is found.
+ *
+ * Bytes are only ever appended, so snapshots share the backing array and stay valid while more bytes come in.
+ */
+public class ByteBacklog {
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private final int maxSize;
+    private byte[] bytes;
+    private int size = 0;
+
+    public ByteBacklog(int maxSize) {
+        this.maxSize = maxSize;
+        this.bytes = new byte[Math.min(INITIAL_CAPACITY, maxSize)];
+    }
+
+    /**
+     * @return false if the bytes don't fit within the maximum size, nothing is appended then
+     */
+    public synchronized boolean append(byte[] buffer) {
+        if (buffer.length > maxSize - size) {
+            return false;
+        }
+        if (bytes.length - size < buffer.length) {
+            bytes = Arrays.copyOf(bytes, (int) Math.min(maxSize, Math.max(bytes.length * 2L, size + buffer.length)));
+        }
+        System.arraycopy(buffer, 0, bytes, size, buffer.length);
+        size += buffer.length;
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(bytes, size);
+    }
+
+    /**
+     * Read-only view of the bytes that were in the backlog when it was taken
+     */
+    public static class Snapshot {
+        private final byte[] bytes;
+        private final int length;
+
+        private Snapshot(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public byte get(int index) {
+            if (index < 0 || index >= length) {
+                throw new ArrayIndexOutOfBoundsException(index);
+            }
+            return bytes[index];
+        }
+
+        public void copyTo(int from, byte[] destination, int destinationFrom, int amount) {
+            if (from < 0 || amount < 0 || from > length - amount) {
+                throw new ArrayIndexOutOfBoundsException(from < 0 ? from : from + amount);
+            }
+            System.arraycopy(bytes, from, destination, destinationFrom, amount);
+        }
+
+        public byte[] toArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+}
@@ -1,41 +1,43 @@
 package gearth.protocol.packethandler;
 
-import gearth.misc.listenerpattern.Observable;
+import gearth.misc.packetrepresentation.PacketStructure;
 import gearth.protocol.HMessage;
 import gearth.protocol.HPacket;
 import gearth.protocol.TrafficListener;
+import gearth.protocol.TrafficStage;
 import gearth.services.extensionhandler.ExtensionHandler;
 
-import java.io.IOException;
 import java.io.OutputStream;
-import java.util.List;
 
 public class IncomingPacketHandler extends PacketHandler {
 
-    public IncomingPacketHandler(OutputStream outputStream, Object[] trafficObservables, OutgoingPacketHandler outgoingHandler, ExtensionHandler extensionHandler) {
-        super(outputStream, trafficObservables, extensionHandler);
+    private static final PacketStructure ENCRYPTION_CHECK_STRUCTURE = PacketStructure.compile("sb");
+    private static final PacketStructure KEY_STRUCTURE = PacketStructure.compile("s");
+
+    public IncomingPacketHandler(OutputStream outputStream, TrafficStage[] trafficStages, OutgoingPacketHandler outgoingHandler, ExtensionHandler extensionHandler) {
+        super(outputStream, trafficStages, extensionHandler);
 
         TrafficListener listener = new TrafficListener() {
             @Override
             public void onCapture(HMessage message) {
-                if (isDataStream && message.getPacket().structureEquals("sb") && message.getPacket().length() > 500) {
-                    ((Observable<TrafficListener>)trafficObservables[0]).removeListener(this);
+                if (isDataStream && ENCRYPTION_CHECK_STRUCTURE.matches(message.getPacket()) && message.getPacket().length() > 500) {
+                    trafficStages[0].removeListener(this);
                     HPacket packet = message.getPacket();
                     packet.readString();
                     isEncryptedStream = packet.readBoolean();
                     outgoingHandler.isEncryptedStream = true;
                 }
-                else if (isDataStream && message.getPacket().structureEquals("s") && message.getPacket().length() > 200) {
-                    ((Observable<TrafficListener>)trafficObservables[0]).removeListener(this);
+                else if (isDataStream && KEY_STRUCTURE.matches(message.getPacket()) && message.getPacket().length() > 200) {
+                    trafficStages[0].removeListener(this);
                     outgoingHandler.isEncryptedStream = true;
                 }
                 else if (message.getIndex() > 1) {
-                    ((Observable<TrafficListener>)trafficObservables[0]).removeListener(this);
+                    trafficStages[0].removeListener(this);
                 }
             }
         };
 
-        ((Observable<TrafficListener>)trafficObservables[0]).addListener(listener);
+        trafficStages[0].addListener(listener);
     }
 
     @Override
@@ -3,18 +3,16 @@ package gearth.protocol.packethandler;
 import gearth.misc.listenerpattern.Observable;
 import gearth.protocol.HMessage;
 import gearth.protocol.HPacket;
+import gearth.protocol.TrafficStage;
 import gearth.services.extensionhandler.ExtensionHandler;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.function.Consumer;
 
 public class OutgoingPacketHandler extends PacketHandler {
 
-    public OutgoingPacketHandler(OutputStream outputStream, Object[] trafficObservables, ExtensionHandler extensionHandler) {
-        super(outputStream, trafficObservables, extensionHandler);
+    public OutgoingPacketHandler(OutputStream outputStream, TrafficStage[] trafficStages, ExtensionHandler extensionHandler) {
+        super(outputStream, trafficStages, extensionHandler);
     }
 
 
@@ -4,14 +4,16 @@ import gearth.misc.listenerpattern.Observable;
 import gearth.protocol.HConnection;
 import gearth.protocol.HMessage;
 import gearth.protocol.HPacket;
-import gearth.protocol.TrafficListener;
+import gearth.protocol.TrafficStage;
 import gearth.protocol.crypto.RC4;
 import gearth.services.extensionhandler.ExtensionHandler;
 import gearth.services.extensionhandler.OnHMessageHandled;
+import gearth.services.extensionhandler.ReleaseBatch;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public abstract class PacketHandler {
@@ -21,7 +23,7 @@ public abstract class PacketHandler {
     private volatile PayloadBuffer payloadBuffer = new PayloadBuffer();
     private volatile OutputStream out;
     private volatile ExtensionHandler extensionHandler;
-    private volatile Object[] trafficObservables; //get notified on packet send
+    private final TrafficStage[] trafficStages; //get notified on packet send
     private volatile boolean isTempBlocked = false;
     volatile boolean isDataStream = false;
     private volatile int currentIndex = 0;
@@ -32,12 +34,50 @@ public abstract class PacketHandler {
     private RC4 decryptcipher = null;
     private RC4 encryptcipher = null;
 
-    private volatile List<Byte> tempEncryptedBuffer = new ArrayList<>();
+    // while nothing got blocked, edited, reordered or injected, the output is byte-for-byte the encrypted input
+    // and packets can be forwarded as the ciphertext they came in as. Offsets are counted from the first encrypted byte
+    private final Object cipherLock = new Object();
+    private volatile boolean isPassthrough = false;
+    private long decryptedBytes = 0; // guarded by cipherLock
+    // ciphertext of the last decrypted bytes in ciphertext[ciphertextStart, ciphertextEnd), compacted like the
+    // PayloadBuffer. A flush copies out the ciphertext of its packets once, guarded by cipherLock
+    private static final int CIPHERTEXT_CAPACITY = 16384;
+    private static final int MAX_RETAINED_CIPHERTEXT_CAPACITY = 1 << 20;
+    private byte[] ciphertext = new byte[CIPHERTEXT_CAPACITY];
+    private int ciphertextStart = 0;
+    private int ciphertextEnd = 0;
+    private long forwardedBytes = 0; // guarded by sendLock
+
+    // while a write batch is open, everything that is sent gets collected (and encrypted in place) here
+    // and is written with a single write once the batch ends, guarded by sendLock
+    private static final int WRITE_BUFFER_CAPACITY = 8192;
+    private static final int MAX_RETAINED_WRITE_BUFFER_CAPACITY = 1 << 20;
+    private byte[] writeBuffer = new byte[WRITE_BUFFER_CAPACITY];
+    private int writeBufferLength = 0;
+    private int writeBatchDepth = 0;
+    // packets the ExtensionHandler releases together (like the replies to a batch) are written together as well
+    private final ReleaseBatch releaseBatch = new ReleaseBatch() {
+        @Override
+        public void begin() {
+            beginWriteBatch();
+        }
+
+        @Override
+        public void end() throws IOException {
+            endWriteBatch();
+        }
+    };
+
+    // encrypted bytes that came in before the RC4 table was found, null once it is (or once it's given up on)
+    private static final int MAX_ENCRYPTED_BACKLOG = 4 << 20;
+    private final Object backlogLock = new Object();
+    private volatile ByteBacklog encryptedBacklog = new ByteBacklog(MAX_ENCRYPTED_BACKLOG);
+    private volatile boolean isDecryptionAbandoned = false;
     volatile boolean isEncryptedStream = false;
 
 
-    PacketHandler(OutputStream outputStream, Object[] trafficObservables, ExtensionHandler extensionHandler) {
-        this.trafficObservables = trafficObservables;
+    PacketHandler(OutputStream outputStream, TrafficStage[] trafficStages, ExtensionHandler extensionHandler) {
+        this.trafficStages = trafficStages;
         this.extensionHandler = extensionHandler;
         out = outputStream;
     }
@@ -62,22 +102,26 @@ public abstract class PacketHandler {
         if (!isEncryptedStream) {
             payloadBuffer.push(buffer);
         }
-        else if (!HConnection.DECRYPTPACKETS) {
+        else if (!HConnection.DECRYPTPACKETS || isDecryptionAbandoned) {
             synchronized (sendLock) {
                 out.write(buffer);
             }
         }
-        else if (decryptcipher == null) {
-            for (int i = 0; i < buffer.length; i++) {
-                tempEncryptedBuffer.add(buffer[i]);
-            }
+        else if (appendToBacklog(buffer)) {
+            // gets decrypted once the RC4 table is found
         }
         else {
-            byte[] tm = decryptcipher.rc4(buffer);
-            if (DEBUG) {
-                printForDebugging(tm);
+            synchronized (cipherLock) {
+                byte[] tm = decryptcipher.rc4(buffer);
+                if (DEBUG) {
+                    printForDebugging(tm);
+                }
+                decryptedBytes += buffer.length;
+                if (isPassthrough) {
+                    appendCiphertext(buffer);
+                }
+                payloadBuffer.push(tm);
             }
-            payloadBuffer.push(tm);
         }
 
         if (!isTempBlocked) {
@@ -86,21 +130,49 @@ public abstract class PacketHandler {
     }
 
 
+    // returns false if the RC4 table is known already
+    private boolean appendToBacklog(byte[] buffer) throws IOException {
+        synchronized (backlogLock) {
+            if (decryptcipher != null) {
+                return false;
+            }
+            if (!isDecryptionAbandoned && !encryptedBacklog.append(buffer)) {
+                // the table won't be found in time anymore, let the traffic through as it is
+                if (DEBUG) {
+                    System.err.println("Encrypted backlog exceeded " + MAX_ENCRYPTED_BACKLOG + " bytes, not decrypting this connection");
+                }
+                isDecryptionAbandoned = true;
+                synchronized (sendLock) {
+                    out.write(encryptedBacklog.snapshot().toArray());
+                }
+                encryptedBacklog = null;
+            }
+            if (isDecryptionAbandoned) {
+                synchronized (sendLock) {
+                    out.write(buffer);
+                }
+            }
+            return true;
+        }
+    }
+
     public void setRc4(RC4 rc4) {
-        this.decryptcipher = rc4.deepCopy();
-        this.encryptcipher = rc4.deepCopy();
+        synchronized (backlogLock) {
+            if (isDecryptionAbandoned) {
+                return;
+            }
 
-        byte[] encrbuffer = new byte[tempEncryptedBuffer.size()];
-        for (int i = 0; i < tempEncryptedBuffer.size(); i++) {
-            encrbuffer[i] = tempEncryptedBuffer.get(i);
-        }
+            this.decryptcipher = rc4.deepCopy();
+            this.encryptcipher = rc4.deepCopy();
+            this.isPassthrough = true;
 
-        try {
-            act(encrbuffer);
-        } catch (IOException e) {
-            e.printStackTrace();
+            try {
+                act(encryptedBacklog.snapshot().toArray());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            encryptedBacklog = null;
         }
-        tempEncryptedBuffer = null;
     }
 
     public void block() {
@@ -120,69 +192,225 @@ public abstract class PacketHandler {
      * @param message
      */
     private void notifyListeners(int i, HMessage message) {
-        ((Observable<TrafficListener>) trafficObservables[i]).fireEvent(trafficListener -> {
-            message.getPacket().resetReadIndex();
-            trafficListener.onCapture(message);
-        });
-        message.getPacket().resetReadIndex();
+        trafficStages[i].fireEvent(message);
     }
 
     public void sendToStream(byte[] buffer) {
         synchronized (sendLock) {
             try {
-                out.write(
-                        (!isEncryptedStream)
-                                ? buffer
-                                : encryptcipher.rc4(buffer)
-                );
+                write(buffer, 0, buffer.length, isEncryptedStream);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    // must hold sendLock
+    private void write(byte[] bytes, int offset, int length, boolean encrypt) throws IOException {
+        if (writeBatchDepth == 0 && !encrypt) {
+            out.write(bytes, offset, length);
+            return;
+        }
+
+        if (writeBuffer.length - writeBufferLength < length) {
+            writeBuffer = Arrays.copyOf(writeBuffer, Math.max(writeBuffer.length * 2, writeBufferLength + length));
+        }
+        System.arraycopy(bytes, offset, writeBuffer, writeBufferLength, length);
+        if (encrypt) {
+            stopPassthrough();
+            encryptcipher.rc4InPlace(writeBuffer, writeBufferLength, length);
+        }
+        writeBufferLength += length;
+
+        if (writeBatchDepth == 0) {
+            writeBuffered();
+        }
+    }
+
+    // must hold sendLock
+    private void writeBuffered() throws IOException {
+        if (writeBufferLength == 0) {
+            return;
+        }
+
+        try {
+            out.write(writeBuffer, 0, writeBufferLength);
+        }
+        finally {
+            writeBufferLength = 0;
+            if (writeBuffer.length > MAX_RETAINED_WRITE_BUFFER_CAPACITY) {
+                writeBuffer = new byte[WRITE_BUFFER_CAPACITY];
+            }
+        }
+    }
+
+    private void beginWriteBatch() {
+        synchronized (sendLock) {
+            writeBatchDepth++;
+        }
+    }
+
+    private void endWriteBatch() throws IOException {
+        synchronized (sendLock) {
+            if (--writeBatchDepth == 0) {
+                writeBuffered();
+            }
+        }
+    }
+
+    // must hold sendLock, from now on everything gets encrypted again
+    private void stopPassthrough() {
+        if (isPassthrough) {
+            synchronized (cipherLock) {
+                isPassthrough = false;
+                ciphertext = new byte[CIPHERTEXT_CAPACITY];
+                ciphertextStart = 0;
+                ciphertextEnd = 0;
+
+                // the encrypt cipher continues where the forwarded ciphertext ended
+                encryptcipher = decryptcipher.deepCopy();
+                encryptcipher.undoRc4((int) (decryptedBytes - forwardedBytes));
+            }
+        }
+    }
+
+    // must hold sendLock, returns false if the packet has to be encrypted
+    private boolean forwardCiphertext(HPacket original, HMessage result, byte[] cipherChunk, int cipherFrom, long streamOffset) throws IOException {
+        if (!isPassthrough || cipherChunk == null || result.getPacket() != original ||
+                original.isReplaced() || streamOffset != forwardedBytes) {
+            return false;
+        }
+
+        int length = original.getBytesLength();
+        write(cipherChunk, cipherFrom, length, false);
+        forwardedBytes += length;
+        return true;
+    }
+
     public void flush() throws IOException {
         synchronized (manipulationLock) {
-            HPacket[] hpackets = payloadBuffer.receive();
+            HPacket[] hpackets;
+            byte[] cipherChunk = null;
+            long cipherChunkOffset = 0;
+            long streamOffset = 0;
+
+            synchronized (cipherLock) {
+                // the payload buffer holds the tail of the decrypted stream
+                streamOffset = decryptedBytes - payloadBuffer.available();
+                hpackets = payloadBuffer.receive();
+
+                if (isPassthrough) {
+                    cipherChunkOffset = decryptedBytes - (ciphertextEnd - ciphertextStart);
+
+                    long consumed = streamOffset - cipherChunkOffset;
+                    for (HPacket hpacket : hpackets) {
+                        consumed += hpacket.getBytesLength();
+                    }
+                    if (consumed > 0) {
+                        cipherChunk = takeCiphertext((int) consumed);
+                    }
+                }
+            }
 
-            for (HPacket hpacket : hpackets){
-                HMessage hMessage = new HMessage(hpacket, getMessageSide(), currentIndex);
-                boolean isencrypted = isEncryptedStream;
+            // packets that arrived together go to the extensions together
+            List<HMessage> interceptedMessages = new ArrayList<>(hpackets.length);
+            List<OnHMessageHandled> interceptedCallbacks = new ArrayList<>(hpackets.length);
 
-                OnHMessageHandled afterExtensionIntercept = hMessage1 -> {
-                    if (isDataStream) {
-                        notifyListeners(2, hMessage1);
-                    }
+            // and the ones that are handled right away are written together
+            beginWriteBatch();
+            try {
+                for (HPacket hpacket : hpackets){
+                    HMessage hMessage = new HMessage(hpacket, getMessageSide(), currentIndex);
+                    boolean isencrypted = isEncryptedStream;
+
+                    // where this packet's ciphertext can be found, if it's available
+                    long packetOffset = streamOffset;
+                    byte[] packetCipherChunk = cipherChunk != null && packetOffset >= cipherChunkOffset ? cipherChunk : null;
+                    int packetCipherFrom = (int) (packetOffset - cipherChunkOffset);
+                    streamOffset += hpacket.getBytesLength();
+
+                    OnHMessageHandled afterExtensionIntercept = hMessage1 -> {
+                        if (isDataStream) {
+                            notifyListeners(2, hMessage1);
+                        }
 
-                    if (!hMessage1.isBlocked())	{
-                        synchronized (sendLock) {
-                            out.write(
-                                    (!isencrypted)
-                                            ? hMessage1.getPacket().toBytes()
-                                            : encryptcipher.rc4(hMessage1.getPacket().toBytes())
-                            );
+                        if (!hMessage1.isBlocked())	{
+                            synchronized (sendLock) {
+                                if (!isencrypted || !forwardCiphertext(hpacket, hMessage1, packetCipherChunk, packetCipherFrom, packetOffset)) {
+                                    byte[] packetBytes = hMessage1.getPacket().toSharedBytes();
+                                    write(packetBytes, 0, packetBytes.length, isencrypted);
+                                }
+                            }
+                        }
+                        else if (isencrypted) {
+                            synchronized (sendLock) {
+                                stopPassthrough();
+                            }
                         }
+                    };
+
+                    if (isDataStream) {
+                        notifyListeners(0, hMessage);
+                        notifyListeners(1, hMessage);
+                        interceptedMessages.add(hMessage);
+                        interceptedCallbacks.add(afterExtensionIntercept);
+                    }
+                    else {
+                        afterExtensionIntercept.finished(hMessage);
                     }
-                };
 
-                if (isDataStream) {
-                    notifyListeners(0, hMessage);
-                    notifyListeners(1, hMessage);
-                    extensionHandler.handle(hMessage, afterExtensionIntercept);
+                    currentIndex++;
                 }
-                else {
-                    afterExtensionIntercept.finished(hMessage);
+
+                if (!interceptedMessages.isEmpty()) {
+                    extensionHandler.handle(interceptedMessages, interceptedCallbacks, releaseBatch);
                 }
+            }
+            finally {
+                endWriteBatch();
+            }
+        }
+    }
+
+    // must hold cipherLock
+    private void appendCiphertext(byte[] buffer) {
+        if (ciphertext.length - ciphertextEnd < buffer.length) {
+            int available = ciphertextEnd - ciphertextStart;
+            byte[] destination = ciphertext.length - available >= buffer.length ?
+                    ciphertext :
+                    new byte[Math.max(ciphertext.length * 2, available + buffer.length)];
+
+            System.arraycopy(ciphertext, ciphertextStart, destination, 0, available);
+            ciphertext = destination;
+            ciphertextStart = 0;
+            ciphertextEnd = available;
+        }
+
+        System.arraycopy(buffer, 0, ciphertext, ciphertextEnd, buffer.length);
+        ciphertextEnd += buffer.length;
+    }
+
+    // must hold cipherLock, the packets of a flush keep their chunk until they're forwarded, so it's a copy
+    private byte[] takeCiphertext(int amount) {
+        byte[] chunk = Arrays.copyOfRange(ciphertext, ciphertextStart, ciphertextStart + amount);
+        ciphertextStart += amount;
 
-                currentIndex++;
+        if (ciphertextStart == ciphertextEnd) {
+            ciphertextStart = 0;
+            ciphertextEnd = 0;
+            if (ciphertext.length > MAX_RETAINED_CIPHERTEXT_CAPACITY) {
+                ciphertext = new byte[CIPHERTEXT_CAPACITY];
             }
         }
+        return chunk;
     }
 
     public abstract HMessage.Direction getMessageSide();
 
-    public List<Byte> getEncryptedBuffer() {
-        return tempEncryptedBuffer;
+    // the encrypted bytes so far, or null if the RC4 table is known already
+    public ByteBacklog.Snapshot getEncryptedBuffer() {
+        ByteBacklog backlog = encryptedBacklog;
+        return backlog == null ? null : backlog.snapshot();
     }
 
     protected abstract void printForDebugging(byte[] bytes);
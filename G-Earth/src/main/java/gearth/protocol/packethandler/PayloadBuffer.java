@@ -5,45 +5,83 @@ import gearth.protocol.HPacket;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+/**
+ * Splits the incoming stream into packets.
+ *
+ * Unread bytes are kept in buffer[start, end), the buffer is only compacted or grown when there's no room
+ * left at the end. Every packet is copied out once.
+ */
 public class PayloadBuffer {
 
-    private byte[] buffer = new byte[0];
+    private static final int INITIAL_CAPACITY = 16384;
+    private static final int MAX_RETAINED_CAPACITY = 1 << 20; // don't hold on to a huge buffer after a huge packet
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int start = 0;
+    private int end = 0;
 
     public HPacket[] pushAndReceive(byte[] tcpData){
         push(tcpData);
         return receive();
     }
     public void push(byte[] tcpData) {
-        buffer = buffer.length == 0 ? tcpData.clone() : combineByteArrays(buffer, tcpData);
+        if (buffer.length - end < tcpData.length) {
+            int available = end - start;
+            byte[] destination = buffer.length - available >= tcpData.length ?
+                    buffer :
+                    new byte[Math.max(buffer.length * 2, available + tcpData.length)];
+
+            System.arraycopy(buffer, start, destination, 0, available);
+            buffer = destination;
+            start = 0;
+            end = available;
+        }
+
+        System.arraycopy(tcpData, 0, buffer, end, tcpData.length);
+        end += tcpData.length;
     }
     public HPacket[] receive() {
-        if (buffer.length < 6) return new HPacket[0];
-        HPacket total = new HPacket(buffer);
+        if (end - start < 6) return new HPacket[0];
 
         ArrayList<HPacket> all = new ArrayList<>();
-        while (total.getBytesLength() >= 4 && total.getBytesLength() - 4 >= total.length()){
-            all.add(new HPacket(Arrays.copyOfRange(buffer, 0, total.length() + 4)));
-            buffer = Arrays.copyOfRange(buffer, total.length() + 4, buffer.length);
-            total = new HPacket(buffer);
+        while (end - start >= 4) {
+            int length = readLength();
+            if (length < 0 || end - start - 4 < length) {
+                break;
+            }
+
+            all.add(HPacket.wrap(Arrays.copyOfRange(buffer, start, start + 4 + length)));
+            start += 4 + length;
+        }
+
+        if (start == end) {
+            start = 0;
+            end = 0;
+            if (buffer.length > MAX_RETAINED_CAPACITY) {
+                buffer = new byte[INITIAL_CAPACITY];
+            }
         }
         return all.toArray(new HPacket[all.size()]);
     }
 
-
-    private byte[] combineByteArrays(byte[] arr1, byte[] arr2)	{
-        byte[] combined = new byte[arr1.length + arr2.length];
-        System.arraycopy(arr1,0,combined,0         ,arr1.length);
-        System.arraycopy(arr2,0,combined,arr1.length,arr2.length);
-        return combined;
+    private int readLength() {
+        return ((buffer[start] & 0xff) << 24) |
+                ((buffer[start + 1] & 0xff) << 16) |
+                ((buffer[start + 2] & 0xff) << 8) |
+                (buffer[start + 3] & 0xff);
     }
 
 
+    public int available() {
+        return end - start;
+    }
     public byte[] peak() {
-        return buffer;
+        return Arrays.copyOfRange(buffer, start, end);
     }
     public byte[] forceClear() {
-        byte[] buff = buffer;
-        buffer = new byte[0];
+        byte[] buff = peak();
+        start = 0;
+        end = 0;
         return buff;
     }
 
@@ -1,6 +1,8 @@
 package gearth.services.extensionhandler;
 
 import gearth.Main;
+import gearth.misc.Cacher;
+import gearth.misc.GEarthThreads;
 import gearth.misc.harble_api.HarbleAPIFetcher;
 import gearth.misc.listenerpattern.Observable;
 import gearth.protocol.HConnection;
@@ -12,14 +14,20 @@ import gearth.services.extensionhandler.extensions.GEarthExtension;
 import gearth.services.extensionhandler.extensions.extensionproducers.ExtensionProducer;
 import gearth.services.extensionhandler.extensions.extensionproducers.ExtensionProducerFactory;
 import gearth.services.extensionhandler.extensions.extensionproducers.ExtensionProducerObserver;
-import javafx.util.Pair;
+import org.json.JSONObject;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class ExtensionHandler {
 
-    private final List<GEarthExtension> gEarthExtensions = new ArrayList<>();
+    private final List<GEarthExtension> gEarthExtensions = new CopyOnWriteArrayList<>();
     private final HConnection hConnection;
     private List<ExtensionProducer> extensionProducers;
     private Observable<ExtensionConnectedListener> observable = new Observable<ExtensionConnectedListener>() {
@@ -32,14 +40,31 @@ public class ExtensionHandler {
         }
     };
 
-    private final Map<HMessage, Set<GEarthExtension>> awaitManipulation = new HashMap<>();
-    private final Map<HMessage, OnHMessageHandled> finishManipulationCallback = new HashMap<>();
-    private final Map<Pair<HMessage.Direction, Integer>, HMessage> originalMessages = new HashMap<>();
-    private final Map<HMessage, HMessage> editedMessages = new HashMap<>();
-    private final TreeSet<HMessage> allAwaitingMessages = new TreeSet<>(Comparator.comparingInt(HMessage::getIndex));
+    private final InFlightMessages incomingInFlight = new InFlightMessages(256);
+    private final InFlightMessages outgoingInFlight = new InFlightMessages(256);
+
+    // extension ids are bits in the awaiting mask of a message, extensions that don't get one are refused
+    private static final int MAX_AWAITED_EXTENSIONS = 64;
+    private final Map<GEarthExtension, Integer> extensionIds = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<GEarthExtension> extensionsById = new AtomicReferenceArray<>(MAX_AWAITED_EXTENSIONS);
+
+    // an extension that doesn't respond in time gets skipped, after too many misses it only observes packets
+    public static final String RESPONSE_DEADLINE_CACHE_KEY = "extension_response_deadline";
+    public static final String MAX_MISSED_DEADLINES_CACHE_KEY = "extension_max_missed_deadlines";
+    private final int responseDeadline;
+    private final int maxMissedDeadlines;
+    // a single periodic sweep over the in-flight messages, instead of a timer per batch
+    private final ScheduledExecutorService deadlineTimer = Executors.newSingleThreadScheduledExecutor(
+            GEarthThreads.factory("G-Earth extension deadlines", true)
+    );
 
     public ExtensionHandler(HConnection hConnection) {
         this.hConnection = hConnection;
+        JSONObject cache = Cacher.getCacheContents();
+        responseDeadline = cache.has(RESPONSE_DEADLINE_CACHE_KEY) ? cache.getInt(RESPONSE_DEADLINE_CACHE_KEY) : 2000;
+        maxMissedDeadlines = cache.has(MAX_MISSED_DEADLINES_CACHE_KEY) ? cache.getInt(MAX_MISSED_DEADLINES_CACHE_KEY) : 3;
+        long sweepInterval = Math.max(10, Math.min(100, responseDeadline / 4));
+        deadlineTimer.scheduleWithFixedDelay(this::onResponseDeadlines, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
         hConnection.setExtensionHandler(this);
         initialize();
     }
@@ -74,101 +99,249 @@ public class ExtensionHandler {
     }
 
 
-    private final Object hMessageStuffLock = new Object();
-    private void onExtensionRespond(GEarthExtension extension, HMessage edited) {
-        HMessage hMessage;
+    private InFlightMessages getInFlight(HMessage.Direction direction) {
+        return direction == HMessage.Direction.TOCLIENT ? incomingInFlight : outgoingInFlight;
+    }
 
-        synchronized (hMessageStuffLock) {
-            Pair<HMessage.Direction, Integer> msgDirAndId = new Pair<>(edited.getDestination(), edited.getIndex());
-            hMessage = originalMessages.get(msgDirAndId);
+    // returns true if the message is finished now, it still has to be released then
+    private boolean onExtensionRespond(GEarthExtension extension, HMessage edited) {
+        Integer extensionId = extensionIds.get(extension);
+        InFlightMessages inFlight = getInFlight(edited.getDestination());
+        boolean responded = false;
+        boolean finished = false;
 
-            if (awaitManipulation.containsKey(hMessage)) {
-                awaitManipulation.get(hMessage).remove(extension);
+        synchronized (inFlight) {
+            int slot = inFlight.find(edited.getIndex());
+            if (extensionId != null && slot != -1 && inFlight.respond(slot, extensionId)) {
+                responded = true;
+                HMessage hMessage = inFlight.getOriginal(slot);
+                HMessage previousEdit = inFlight.getEdited(slot);
 
-                boolean wasBlocked = hMessage.isBlocked() ||
-                        (editedMessages.get(hMessage) != null && editedMessages.get(hMessage).isBlocked());
+                boolean wasBlocked = hMessage.isBlocked() || (previousEdit != null && previousEdit.isBlocked());
 
-                if (!hMessage.equals(edited)) {
-                    editedMessages.put(hMessage, edited);
+                if (!hMessage.getPacket().equals(edited.getPacket())) {
+                    inFlight.setEdited(slot, edited);
                     if (wasBlocked) {
-                        editedMessages.get(hMessage).setBlocked(true);
+                        edited.setBlocked(true);
                     }
                 }
                 else if (edited.isBlocked()) {
-                    editedMessages.putIfAbsent(hMessage, edited);
-                    editedMessages.get(hMessage).setBlocked(true);
+                    if (previousEdit == null) {
+                        inFlight.setEdited(slot, edited);
+                    }
+                    inFlight.getEdited(slot).setBlocked(true);
                 }
 
+                finished = inFlight.isFinished(slot);
             }
-            else {
-                hMessage = null;
+        }
+
+        if (!responded) {
+            onLateResponse(extension);
+        }
+        return finished;
+    }
+    // acknowledgement of an extension that didn't edit the packet, no need to compare the packet contents
+    private boolean onExtensionRespondUnchanged(GEarthExtension extension, HMessage.Direction direction, int index, boolean blocked) {
+        Integer extensionId = extensionIds.get(extension);
+        InFlightMessages inFlight = getInFlight(direction);
+        boolean responded = false;
+        boolean finished = false;
+
+        synchronized (inFlight) {
+            int slot = inFlight.find(index);
+            if (extensionId != null && slot != -1 && inFlight.respond(slot, extensionId)) {
+                responded = true;
+
+                if (blocked) {
+                    if (inFlight.getEdited(slot) == null) {
+                        inFlight.setEdited(slot, new HMessage(inFlight.getOriginal(slot)));
+                    }
+                    inFlight.getEdited(slot).setBlocked(true);
+                }
+
+                finished = inFlight.isFinished(slot);
             }
         }
 
-        if (hMessage != null) {
-            maybeFinishHmessage(hMessage);
+        if (!responded) {
+            onLateResponse(extension);
         }
+        return finished;
     }
-    private void onExtensionRemoved(GEarthExtension extension) {
-        List<HMessage> awaiting;
-        synchronized (hMessageStuffLock) {
-            awaiting = new ArrayList<>(allAwaitingMessages);
+    // the packet has already been sent without waiting for this response
+    private void onLateResponse(GEarthExtension extension) {
+        if (!extension.isObserveOnly() && extensionIds.containsKey(extension)) {
+            extension.lateResponse();
+        }
+    }
+    private void onResponseDeadlines() {
+        try {
+            expireMessages(incomingInFlight);
+            expireMessages(outgoingInFlight);
+        } catch (RuntimeException e) {
+            e.printStackTrace(); // would cancel the sweep otherwise
+        }
+    }
+    // sends the messages that waited too long, without waiting for the remaining extensions
+    private void expireMessages(InFlightMessages inFlight) {
+        List<GEarthExtension> tooLate = new ArrayList<>();
+
+        synchronized (inFlight) {
+            long missed = inFlight.expire(System.nanoTime());
+            for (int id = 0; id < MAX_AWAITED_EXTENSIONS; id++) {
+                if ((missed & (1L << id)) != 0 && extensionsById.get(id) != null) {
+                    tooLate.add(extensionsById.get(id));
+                }
+            }
         }
-        for (HMessage hMessage : awaiting) {
-            synchronized (hMessageStuffLock) {
-                awaitManipulation.get(hMessage).remove(extension);
+
+        // a batch of packets that was held up counts as a single miss
+        for (GEarthExtension extension : tooLate) {
+            extension.missedDeadline(maxMissedDeadlines);
+        }
+        release(inFlight);
+    }
+    private void onExtensionRemoved(GEarthExtension extension) {
+        Integer extensionId;
+
+        synchronized (gEarthExtensions) {
+            gEarthExtensions.remove(extension);
+            extensionId = extensionIds.remove(extension);
+            if (extensionId != null) {
+                // the id can only be reused once no message is waiting for it anymore
+                synchronized (incomingInFlight) {
+                    incomingInFlight.stopAwaiting(extensionId);
+                }
+                synchronized (outgoingInFlight) {
+                    outgoingInFlight.stopAwaiting(extensionId);
+                }
+                extensionsById.set(extensionId, null);
             }
-            maybeFinishHmessage(hMessage);
+        }
+
+        if (extensionId != null) {
+            release(incomingInFlight);
+            release(outgoingInFlight);
         }
     }
 
-    // argument is the original hmessage, not an edited one
-    private void maybeFinishHmessage(HMessage hMessage) {
-        OnHMessageHandled maybeCallback = null;
-        HMessage result = null;
+    // sends the finished messages at the head of the queue. Whichever thread finished a message, the callbacks
+    // are called one release at a time, so the packets go out in the order they came in
+    private void release(InFlightMessages inFlight) {
+        List<HMessage> results = new ArrayList<>();
+        List<OnHMessageHandled> finished = new ArrayList<>();
+        List<ReleaseBatch> batches = new ArrayList<>();
 
-        synchronized (hMessageStuffLock) {
-            if (hMessage != null && awaitManipulation.containsKey(hMessage)) {
-                boolean isFinished = awaitManipulation.get(hMessage).isEmpty();
+        synchronized (inFlight.releaseLock) {
+            synchronized (inFlight) {
+                inFlight.releaseFinished(results, finished, batches);
+            }
 
-                if (isFinished) {
-                    awaitManipulation.remove(hMessage);
-                    result = editedMessages.get(hMessage) == null ? hMessage : editedMessages.get(hMessage);
-                    editedMessages.remove(hMessage);
-                    originalMessages.remove(new Pair<>(result.getDestination(), result.getIndex()));
-                    allAwaitingMessages.remove(hMessage);
-                    maybeCallback = finishManipulationCallback.remove(hMessage);
+            // consecutive messages of the same batch are written at once
+            ReleaseBatch batch = null;
+            try {
+                for (int i = 0; i < finished.size(); i++) {
+                    if (batches.get(i) != batch) {
+                        endBatch(batch);
+                        batch = batches.get(i);
+                        if (batch != null) {
+                            batch.begin();
+                        }
+                    }
+                    finish(finished.get(i), results.get(i));
                 }
             }
+            finally {
+                endBatch(batch);
+            }
         }
+    }
 
-        if (maybeCallback != null) {
+    private void endBatch(ReleaseBatch batch) {
+        if (batch != null) {
             try {
-                maybeCallback.finished(result);
+                batch.end();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
+
+    private void finish(OnHMessageHandled callback, HMessage result) {
+        try {
+            callback.finished(result);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        deliverObservations(result);
+    }
+    // observers get the packet as it was forwarded (or blocked), once nothing can change it anymore
+    private void deliverObservations(HMessage result) {
+        HPacket packet = result.getPacket();
+        int headerId = packet.isCorrupted() ? -1 : packet.headerId();
+
+        HMessage copy = null;
+        for (GEarthExtension extension : gEarthExtensions) {
+            if (isObservingPacket(extension, result.getDestination(), headerId)) {
+                if (copy == null) {
+                    copy = new HMessage(result);
+                }
+                extension.packetObserve(copy);
+            }
+        }
+    }
+    // extensions that were too slow too often observe the packets they intercept instead
+    private static boolean isObservingPacket(GEarthExtension extension, HMessage.Direction direction, int headerId) {
+        return extension.isObservingPacket(direction, headerId) ||
+                (extension.isObserveOnly() && extension.isInterceptingPacket(direction, headerId));
+    }
     public void handle(HMessage hMessage, OnHMessageHandled callback) {
-        synchronized (hMessageStuffLock) {
-            Pair<HMessage.Direction, Integer> msgDirectionAndId = new Pair<>(hMessage.getDestination(), hMessage.getIndex());
-            originalMessages.put(msgDirectionAndId, hMessage);
-            finishManipulationCallback.put(hMessage, callback);
-            editedMessages.put(hMessage, null);
-            allAwaitingMessages.add(hMessage);
+        handle(Collections.singletonList(hMessage), Collections.singletonList(callback), null);
+    }
+
+    // packets that arrived together (same direction), every extension receives its share of them at once.
+    // The callbacks of messages that are released together are wrapped in the batch, if there is one
+    public void handle(List<HMessage> hMessages, List<OnHMessageHandled> callbacks, ReleaseBatch batch) {
+        if (hMessages.isEmpty()) {
+            return;
+        }
+
+        InFlightMessages inFlight = getInFlight(hMessages.get(0).getDestination());
+        Map<GEarthExtension, List<HMessage>> intercepts = new HashMap<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(responseDeadline);
+
+        synchronized (inFlight) {
+            for (int i = 0; i < hMessages.size(); i++) {
+                HMessage hMessage = hMessages.get(i);
 
-            synchronized (gEarthExtensions) {
-                awaitManipulation.put(hMessage, new HashSet<>(gEarthExtensions));
+                HPacket packet = hMessage.getPacket();
+                int headerId = packet.isCorrupted() ? -1 : packet.headerId();
 
+                long awaiting = 0;
                 for (GEarthExtension extension : gEarthExtensions) {
-                    extension.packetIntercept(hMessage);
+                    if (!extension.isObserveOnly() && extension.isInterceptingPacket(hMessage.getDestination(), headerId)) {
+                        Integer extensionId = extensionIds.get(extension);
+                        if (extensionId != null) { // null once the extension is being removed
+                            awaiting |= 1L << extensionId;
+                            intercepts.computeIfAbsent(extension, e -> new ArrayList<>()).add(hMessage);
+                        }
+                    }
                 }
+
+                inFlight.add(hMessage, callbacks.get(i), batch, awaiting, deadline);
             }
         }
 
+        for (GEarthExtension extension : gEarthExtensions) {
+            List<HMessage> intercepted = intercepts.get(extension);
+            if (intercepted != null) {
+                extension.packetIntercept(intercepted);
+            }
+        }
 
-        maybeFinishHmessage(hMessage);
+        // the ones no extension needs to respond to, unless they're queued up behind one that's still awaited
+        release(inFlight);
     }
 
 
@@ -178,6 +351,20 @@ public class ExtensionHandler {
             @Override
             public void onExtensionProduced(GEarthExtension extension) {
                 synchronized (gEarthExtensions) {
+                    // the id must be there before handle() can see the extension
+                    for (int id = 0; id < MAX_AWAITED_EXTENSIONS; id++) {
+                        if (extensionsById.get(id) == null) {
+                            extensionsById.set(id, extension);
+                            extensionIds.put(extension, id);
+                            break;
+                        }
+                    }
+                    if (!extensionIds.containsKey(extension)) {
+                        System.err.println("Can't connect extension \"" + extension.getTitle() + "\", only " +
+                                MAX_AWAITED_EXTENSIONS + " extensions can be connected at the same time");
+                        extension.close();
+                        return;
+                    }
                     gEarthExtensions.add(extension);
                 }
 
@@ -200,17 +387,51 @@ public class ExtensionHandler {
 
                     @Override
                     public void hasClosed() {
-                        synchronized (gEarthExtensions) {
-                            gEarthExtensions.remove(extension);
-                        }
                         onExtensionRemoved(extension);
                         extension.getExtensionObservable().removeListener(this);
                         extension.getDeletedObservable().fireEvent();
                     }
 
+                    // the messages finished by the responses of a batch are released together, once it ends.
+                    // Only used by the extension's reader thread
+                    private boolean isInResponseBatch = false;
+                    private final Set<HMessage.Direction> finishedDirections = EnumSet.noneOf(HMessage.Direction.class);
+
                     @Override
                     protected void manipulatedPacket(HMessage hMessage) {
-                        onExtensionRespond(extension, hMessage);
+                        if (onExtensionRespond(extension, hMessage)) {
+                            finished(hMessage.getDestination());
+                        }
+                    }
+
+                    @Override
+                    protected void unchangedPacket(HMessage.Direction direction, int index, boolean blocked) {
+                        if (onExtensionRespondUnchanged(extension, direction, index, blocked)) {
+                            finished(direction);
+                        }
+                    }
+
+                    @Override
+                    protected void responseBatchStart() {
+                        isInResponseBatch = true;
+                    }
+
+                    @Override
+                    protected void responseBatchEnd() {
+                        isInResponseBatch = false;
+                        for (HMessage.Direction direction : finishedDirections) {
+                            release(getInFlight(direction));
+                        }
+                        finishedDirections.clear();
+                    }
+
+                    private void finished(HMessage.Direction direction) {
+                        if (isInResponseBatch) {
+                            finishedDirections.add(direction);
+                        }
+                        else {
+                            release(getInFlight(direction));
+                        }
                     }
                 };
 
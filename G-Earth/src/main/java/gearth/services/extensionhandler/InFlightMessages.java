@@ -0,0 +1,178 @@
+package gearth.services.extensionhandler;
+
+import gearth.protocol.HMessage;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Messages of a single direction that are waiting for extensions.
+ *
+ * Messages are stored in a ring of slots indexed by HMessage.getIndex(), every slot keeps a bitmask
+ * of the extension ids it's still waiting for. The ring only grows when an index collides with a
+ * message that is still in flight, so once warmed up, no allocations are needed.
+ *
+ * Finished messages are only released from the head of the queue, so they leave in the order they were added
+ * in, even when a later message is finished first.
+ *
+ * Not thread-safe, synchronize on the instance.
+ */
+class InFlightMessages {
+
+    // held while releasing and calling the callbacks, so that two threads can't reorder the messages
+    final Object releaseLock = new Object();
+
+    private HMessage[] originals;
+    private HMessage[] edits;
+    private OnHMessageHandled[] callbacks;
+    private ReleaseBatch[] batches;
+    private long[] awaiting;
+    private long[] deadlines; // System.nanoTime() after which the message is sent anyway
+    private int mask;
+    private final ArrayDeque<HMessage> queue = new ArrayDeque<>(); // messages in the order they were added
+
+    // capacity must be a power of 2
+    InFlightMessages(int capacity) {
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        originals = new HMessage[capacity];
+        edits = new HMessage[capacity];
+        callbacks = new OnHMessageHandled[capacity];
+        batches = new ReleaseBatch[capacity];
+        awaiting = new long[capacity];
+        deadlines = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    void add(HMessage hMessage, OnHMessageHandled callback, ReleaseBatch batch, long awaitingExtensions, long deadline) {
+        while (originals[hMessage.getIndex() & mask] != null) {
+            grow();
+        }
+
+        int slot = hMessage.getIndex() & mask;
+        originals[slot] = hMessage;
+        edits[slot] = null;
+        callbacks[slot] = callback;
+        batches[slot] = batch;
+        awaiting[slot] = awaitingExtensions;
+        deadlines[slot] = deadline;
+        queue.addLast(hMessage);
+    }
+
+    private void grow() {
+        HMessage[] oldOriginals = originals;
+        HMessage[] oldEdits = edits;
+        OnHMessageHandled[] oldCallbacks = callbacks;
+        ReleaseBatch[] oldBatches = batches;
+        long[] oldAwaiting = awaiting;
+        long[] oldDeadlines = deadlines;
+
+        int capacity = oldOriginals.length * 2;
+        boolean collision;
+        do {
+            allocate(capacity);
+            collision = false;
+            for (int i = 0; i < oldOriginals.length && !collision; i++) {
+                if (oldOriginals[i] != null) {
+                    int slot = oldOriginals[i].getIndex() & mask;
+                    if (originals[slot] != null) {
+                        collision = true;
+                    }
+                    else {
+                        originals[slot] = oldOriginals[i];
+                        edits[slot] = oldEdits[i];
+                        callbacks[slot] = oldCallbacks[i];
+                        batches[slot] = oldBatches[i];
+                        awaiting[slot] = oldAwaiting[i];
+                        deadlines[slot] = oldDeadlines[i];
+                    }
+                }
+            }
+            capacity *= 2;
+        } while (collision);
+    }
+
+    // returns -1 if the message with this index isn't in flight
+    int find(int index) {
+        int slot = index & mask;
+        return originals[slot] != null && originals[slot].getIndex() == index ? slot : -1;
+    }
+
+    // returns false if the slot wasn't waiting for this extension
+    boolean respond(int slot, int extensionId) {
+        long bit = 1L << extensionId;
+        if ((awaiting[slot] & bit) == 0) {
+            return false;
+        }
+        awaiting[slot] &= ~bit;
+        return true;
+    }
+
+    // stops waiting for every message of which the deadline has passed,
+    // returns the extensions that were still awaited by any of them
+    long expire(long now) {
+        long missed = 0;
+        for (int slot = 0; slot < originals.length; slot++) {
+            if (originals[slot] != null && awaiting[slot] != 0 && now - deadlines[slot] >= 0) {
+                missed |= awaiting[slot];
+                awaiting[slot] = 0;
+            }
+        }
+        return missed;
+    }
+
+    // stops waiting for the extension in every slot
+    void stopAwaiting(int extensionId) {
+        long bit = 1L << extensionId;
+        for (int slot = 0; slot < originals.length; slot++) {
+            awaiting[slot] &= ~bit;
+        }
+    }
+
+    // removes the finished messages at the head of the queue and adds them to the lists, up to the first unfinished one
+    void releaseFinished(List<HMessage> results, List<OnHMessageHandled> finished, List<ReleaseBatch> finishedBatches) {
+        while (!queue.isEmpty()) {
+            int slot = queue.peekFirst().getIndex() & mask;
+            if (awaiting[slot] != 0) {
+                return;
+            }
+            queue.pollFirst();
+            results.add(getResult(slot));
+            finishedBatches.add(batches[slot]);
+            finished.add(remove(slot));
+        }
+    }
+
+    boolean isFinished(int slot) {
+        return awaiting[slot] == 0;
+    }
+
+    HMessage getOriginal(int slot) {
+        return originals[slot];
+    }
+
+    HMessage getEdited(int slot) {
+        return edits[slot];
+    }
+
+    void setEdited(int slot, HMessage edited) {
+        edits[slot] = edited;
+    }
+
+    HMessage getResult(int slot) {
+        return edits[slot] == null ? originals[slot] : edits[slot];
+    }
+
+    // frees the slot and returns its callback
+    private OnHMessageHandled remove(int slot) {
+        OnHMessageHandled callback = callbacks[slot];
+        originals[slot] = null;
+        edits[slot] = null;
+        callbacks[slot] = null;
+        batches[slot] = null;
+        awaiting[slot] = 0;
+        return callback;
+    }
+}
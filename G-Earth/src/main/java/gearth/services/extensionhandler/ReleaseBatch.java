@@ -0,0 +1,14 @@
+package gearth.services.extensionhandler;
+
+import java.io.IOException;
+
+/**
+ * Wraps the callbacks of messages that are released together, PacketHandler uses it to write their packets at once.
+ */
+public interface ReleaseBatch {
+
+    void begin();
+
+    void end() throws IOException;
+
+}
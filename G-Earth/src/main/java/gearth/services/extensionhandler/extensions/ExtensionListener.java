@@ -7,6 +7,10 @@ public abstract class ExtensionListener {
 
     // override whatever you need
     protected void manipulatedPacket(HMessage hMessage) {}
+    protected void unchangedPacket(HMessage.Direction direction, int index, boolean blocked) {}
+    // the responses in between belong to a single batch
+    protected void responseBatchStart() {}
+    protected void responseBatchEnd() {}
     protected void flagsRequest() {}
     protected void sendMessage(HMessage.Direction direction, HPacket packet) {}
     protected void log(String text) {}
@@ -7,6 +7,10 @@ import gearth.protocol.HPacket;
 import gearth.services.extensionhandler.extensions.listeners.OmRemoveClickListener;
 import gearth.services.extensionhandler.extensions.listeners.OnClickListener;
 import gearth.services.extensionhandler.extensions.listeners.OnDeleteListener;
+import gearth.services.extensionhandler.extensions.listeners.OnResponseStatsListener;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class GEarthExtension {
 
@@ -25,6 +29,17 @@ public abstract class GEarthExtension {
     public abstract boolean isDeleteButtonVisible();
     public abstract boolean isLeaveButtonVisible();
     public abstract boolean isInstalledExtension();
+
+    // packets for which this returns false won't be intercepted by this extension
+    public boolean isInterceptingPacket(HMessage.Direction direction, int headerId) {
+        return true;
+    }
+
+    // packets for which this returns true are delivered with packetObserve() once they have been forwarded
+    // (or blocked), with the packet as it was sent. This includes packets this extension intercepts
+    public boolean isObservingPacket(HMessage.Direction direction, int headerId) {
+        return false;
+    }
     // --------------------------------------------
 
 
@@ -35,6 +50,10 @@ public abstract class GEarthExtension {
     // ------- actions you can perform towards the extension ---------
     public abstract void doubleclick();
     public abstract void packetIntercept(HMessage hMessage);
+    public void packetIntercept(List<HMessage> hMessages) { // override to send them in one go
+        hMessages.forEach(this::packetIntercept);
+    }
+    public abstract void packetObserve(HMessage hMessage); // must not block, don't respond
     public abstract void provideFlags(String[] flags);
     public abstract void connectionStart(String host, int port, String hotelVersion, String harbleMessagesPath);
     public abstract void connectionEnd();
@@ -61,6 +80,17 @@ public abstract class GEarthExtension {
         });
         hMessage.getPacket().setReadIndex(orgIndex);
     }
+    // lighter version of sendManipulatedPacket() for when the packet wasn't edited
+    protected void sendUnchangedPacket(HMessage.Direction direction, int index, boolean blocked) {
+        extensionObservable.fireEvent(listener -> listener.unchangedPacket(direction, index, blocked));
+    }
+    // wrap the responses to a batch of intercepted packets, so they're sent on together
+    protected void sendResponseBatchStart() {
+        extensionObservable.fireEvent(ExtensionListener::responseBatchStart);
+    }
+    protected void sendResponseBatchEnd() {
+        extensionObservable.fireEvent(ExtensionListener::responseBatchEnd);
+    }
     protected void requestFlags() {
         extensionObservable.fireEvent(ExtensionListener::flagsRequest);
     }
@@ -86,6 +116,57 @@ public abstract class GEarthExtension {
 
 
 
+    // ------------- response deadline, maintained by the ExtensionHandler -------------------
+
+    private final AtomicInteger missedDeadlines = new AtomicInteger(0);
+    private final AtomicInteger lateResponses = new AtomicInteger(0);
+    // packets this extension intercepts are no longer waited for, but delivered with packetObserve()
+    private volatile boolean observeOnly = false;
+
+    public int getMissedDeadlines() {
+        return missedDeadlines.get();
+    }
+    public int getLateResponses() {
+        return lateResponses.get();
+    }
+    public boolean isDegraded() {
+        return missedDeadlines.get() > 0;
+    }
+    public boolean isObserveOnly() {
+        return observeOnly;
+    }
+
+    public void missedDeadline(int maxMissedDeadlines) {
+        if (missedDeadlines.incrementAndGet() >= maxMissedDeadlines) {
+            observeOnly = true;
+        }
+        responseStatsObservable.fireEvent();
+    }
+    public void lateResponse() {
+        lateResponses.incrementAndGet();
+        responseStatsObservable.fireEvent();
+    }
+    // the extension asked to intercept again, it gets a clean slate
+    protected void restoreInterception() {
+        if (observeOnly) {
+            missedDeadlines.set(0);
+            observeOnly = false;
+            responseStatsObservable.fireEvent();
+        }
+    }
+
+    private final Observable<OnResponseStatsListener> responseStatsObservable = new SynchronizedObservable<>(OnResponseStatsListener::onChange);
+    public Observable<OnResponseStatsListener> getResponseStatsObservable() {
+        return responseStatsObservable;
+    }
+    // ----------------------------------------------------------------------------------------
+
+
+
+
+
+
+
     // ----------- methods for interaction with G-Earth UI, don't use/change them ----------------
 
     private final Observable<OmRemoveClickListener> removeClickObservable = new SynchronizedObservable<>(OmRemoveClickListener::onRemove);
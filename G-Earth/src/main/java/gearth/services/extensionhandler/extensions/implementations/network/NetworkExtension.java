@@ -1,5 +1,6 @@
 package gearth.services.extensionhandler.extensions.implementations.network;
 
+import gearth.misc.GEarthThreads;
 import gearth.protocol.HMessage;
 import gearth.services.extensionhandler.extensions.GEarthExtension;
 import gearth.protocol.HPacket;
@@ -8,6 +9,14 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Jonas on 21/06/18.
@@ -27,6 +36,22 @@ public class NetworkExtension extends GEarthExtension {
     private String fileName;
     private String cookie;
 
+    private boolean usesInterceptSubscriptions;
+    private int protocolVersion;
+    private final Set<Integer> incomingSubscriptions = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> outgoingSubscriptions = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> incomingObservations = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> outgoingObservations = ConcurrentHashMap.newKeySet();
+
+    // observed packets are written from here so a slow extension can't stall the packet pipeline,
+    // once too many are queued up, new ones are dropped for this extension
+    private static final int MAX_QUEUED_OBSERVATIONS = 4096;
+    private final ExecutorService observeSender = new ThreadPoolExecutor(
+            1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED_OBSERVATIONS),
+            GEarthThreads.factory("G-Earth extension observer", false)
+    );
+
     private Socket connection;
 
     NetworkExtension(HPacket extensionInfo, Socket connection) {
@@ -43,10 +68,16 @@ public class NetworkExtension extends GEarthExtension {
         this.leaveButtonVisible = extensionInfo.readBoolean();
         this.deleteButtonVisible = extensionInfo.readBoolean();
 
+        // older extensions don't send this field and expect to receive every packet
+        this.usesInterceptSubscriptions = extensionInfo.isEOF() == 0 && extensionInfo.readBoolean();
+        this.protocolVersion = extensionInfo.isEOF() == 0 ?
+                Math.min(extensionInfo.readInteger(), NetworkExtensionInfo.PROTOCOL_VERSION) :
+                0;
+
         this.connection = connection;
 
         NetworkExtension selff = this;
-        new Thread(() -> {
+        GEarthThreads.start("G-Earth extension reader", () -> {
             try {
                 InputStream inputStream = connection.getInputStream();
                 DataInputStream dIn = new DataInputStream(inputStream);
@@ -60,7 +91,7 @@ public class NetworkExtension extends GEarthExtension {
                         amountRead += dIn.read(headerandbody, 4 + amountRead, Math.min(dIn.available(), length - amountRead));
                     }
 
-                    HPacket message = new HPacket(headerandbody);
+                    HPacket message = HPacket.wrap(headerandbody);
                     message.fixLength();
 
                     synchronized (selff.extensionObservable) {
@@ -72,7 +103,7 @@ public class NetworkExtension extends GEarthExtension {
                             int byteLength = message.readInteger();
                             byte[] packetAsByteArray = message.readBytes(byteLength);
 
-                            HPacket packet = new HPacket(packetAsByteArray);
+                            HPacket packet = HPacket.wrap(packetAsByteArray);
                             if (!packet.isCorrupted()) {
                                 sendMessage(
                                         side == 0 ? HMessage.Direction.TOCLIENT : HMessage.Direction.TOSERVER,
@@ -81,10 +112,55 @@ public class NetworkExtension extends GEarthExtension {
                             }
                         }
                         else if (message.headerId() == NetworkExtensionInfo.INCOMING_MESSAGES_IDS.MANIPULATEDPACKET) {
-                            String stringifiedresponse = message.readLongString(6);
-                            HMessage responseMessage = new HMessage(stringifiedresponse);
+                            HMessage responseMessage;
+                            if (protocolVersion >= 1) {
+                                responseMessage = NetworkExtensionCodec.decode(message);
+                            }
+                            else {
+                                String stringifiedresponse = message.readLongString(6);
+                                responseMessage = new HMessage(stringifiedresponse);
+                            }
                             sendManipulatedPacket(responseMessage);
                         }
+                        else if (message.headerId() == NetworkExtensionInfo.INCOMING_MESSAGES_IDS.INTERCEPTSUBSCRIPTION) {
+                            byte side = message.readByte();
+                            int headerId = message.readInteger();
+                            boolean observeOnly = message.isEOF() == 0 && message.readBoolean();
+                            if (observeOnly) {
+                                (side == 0 ? incomingObservations : outgoingObservations).add(headerId);
+                            }
+                            else {
+                                (side == 0 ? incomingSubscriptions : outgoingSubscriptions).add(headerId);
+                                restoreInterception();
+                            }
+                        }
+                        else if (message.headerId() == NetworkExtensionInfo.INCOMING_MESSAGES_IDS.UNCHANGEDPACKET) {
+                            int index = message.readInteger();
+                            HMessage.Direction direction = NetworkExtensionCodec.readDirection(message);
+                            boolean blocked = NetworkExtensionCodec.readBlocked(message);
+                            sendUnchangedPacket(direction, index, blocked);
+                        }
+                        else if (message.headerId() == NetworkExtensionInfo.INCOMING_MESSAGES_IDS.MANIPULATEDPACKETBATCH) {
+                            int count = message.readInteger();
+                            sendResponseBatchStart();
+                            try {
+                                for (int i = 0; i < count; i++) {
+                                    int frameLength = message.readInteger();
+                                    if (NetworkExtensionCodec.isUnchangedFrame(frameLength)) {
+                                        int index = message.readInteger();
+                                        HMessage.Direction direction = NetworkExtensionCodec.readDirection(message);
+                                        boolean blocked = NetworkExtensionCodec.readBlocked(message);
+                                        sendUnchangedPacket(direction, index, blocked);
+                                    }
+                                    else {
+                                        sendManipulatedPacket(NetworkExtensionCodec.decode(message, frameLength));
+                                    }
+                                }
+                            }
+                            finally {
+                                sendResponseBatchEnd();
+                            }
+                        }
                         else if (message.headerId() == NetworkExtensionInfo.INCOMING_MESSAGES_IDS.EXTENSIONCONSOLELOG) {
                             log(message.readString());
                         }
@@ -96,6 +172,7 @@ public class NetworkExtension extends GEarthExtension {
             } catch (IOException e) {
                 // An extension disconnected, which is OK
             } finally {
+                observeSender.shutdownNow();
                 synchronized (selff.extensionObservable) {
                     hasClosed();
                 }
@@ -107,7 +184,7 @@ public class NetworkExtension extends GEarthExtension {
                     }
                 }
             }
-        }).start();
+        });
 
 
     }
@@ -145,11 +222,31 @@ public class NetworkExtension extends GEarthExtension {
         return isInstalledExtension;
     }
 
+    @Override
+    public boolean isInterceptingPacket(HMessage.Direction direction, int headerId) {
+        if (!usesInterceptSubscriptions) {
+            return true;
+        }
+
+        Set<Integer> subscriptions = direction == HMessage.Direction.TOCLIENT ? incomingSubscriptions : outgoingSubscriptions;
+        return subscriptions.contains(-1) || subscriptions.contains(headerId);
+    }
+
+    @Override
+    public boolean isObservingPacket(HMessage.Direction direction, int headerId) {
+        Set<Integer> observations = direction == HMessage.Direction.TOCLIENT ? incomingObservations : outgoingObservations;
+        return observations.contains(-1) || observations.contains(headerId);
+    }
+
 
     private boolean sendMessage(HPacket message) {
+        return sendMessage(message.toSharedBytes());
+    }
+
+    private boolean sendMessage(byte[] message) {
         try {
             synchronized (this) {
-                connection.getOutputStream().write(message.toBytes());
+                connection.getOutputStream().write(message);
             }
             return true;
         } catch (IOException e) {
@@ -164,10 +261,54 @@ public class NetworkExtension extends GEarthExtension {
 
     @Override
     public void packetIntercept(HMessage hMessage) {
-        String stringified = hMessage.stringify();
-        HPacket manipulatePacketRequest = new HPacket(NetworkExtensionInfo.OUTGOING_MESSAGES_IDS.PACKETINTERCEPT);
-        manipulatePacketRequest.appendLongString(stringified);
-        sendMessage(manipulatePacketRequest);
+        sendHMessage(NetworkExtensionInfo.OUTGOING_MESSAGES_IDS.PACKETINTERCEPT, hMessage);
+    }
+
+    @Override
+    public void packetIntercept(List<HMessage> hMessages) {
+        if (protocolVersion >= 3 && hMessages.size() > 1) {
+            sendMessage(NetworkExtensionCodec.encodeBatch(NetworkExtensionInfo.OUTGOING_MESSAGES_IDS.PACKETINTERCEPTBATCH, hMessages));
+        }
+        else {
+            super.packetIntercept(hMessages);
+        }
+    }
+
+    private void sendHMessage(int headerId, HMessage hMessage) {
+        if (protocolVersion >= 1) {
+            sendMessage(NetworkExtensionCodec.encode(headerId, hMessage));
+        }
+        else {
+            HPacket packet = new HPacket(headerId);
+            packet.appendLongString(hMessage.stringify());
+            sendMessage(packet);
+        }
+    }
+
+    private void sendObservedHMessage(HMessage hMessage, boolean interceptSkipped) {
+        if (protocolVersion >= 1) {
+            sendMessage(NetworkExtensionCodec.encode(NetworkExtensionInfo.OUTGOING_MESSAGES_IDS.PACKETOBSERVE, hMessage, interceptSkipped));
+        }
+        else {
+            HPacket packet = new HPacket(NetworkExtensionInfo.OUTGOING_MESSAGES_IDS.PACKETOBSERVE);
+            packet.appendLongString(hMessage.stringify());
+            packet.appendBoolean(interceptSkipped);
+            sendMessage(packet);
+        }
+    }
+
+    @Override
+    public void packetObserve(HMessage hMessage) {
+        // tells the extension to run its intercept listeners too, G-Earth didn't send it a PACKET-INTERCEPT for it
+        HPacket packet = hMessage.getPacket();
+        boolean interceptSkipped = isObserveOnly() &&
+                isInterceptingPacket(hMessage.getDestination(), packet.isCorrupted() ? -1 : packet.headerId());
+
+        try {
+            observeSender.execute(() -> sendObservedHMessage(hMessage, interceptSkipped));
+        } catch (RejectedExecutionException ignored) {
+            // extension is closing, or is too far behind
+        }
     }
 
     @Override
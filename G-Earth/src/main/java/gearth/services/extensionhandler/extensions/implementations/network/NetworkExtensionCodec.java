@@ -0,0 +1,147 @@
+package gearth.services.extensionhandler.extensions.implementations.network;
+
+import gearth.protocol.HMessage;
+import gearth.protocol.HPacket;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary HMessage frames for protocol version 1 and up, replaces the stringified HMessage.
+ *
+ * frame = int index, byte direction, byte flags, raw packet bytes (up until the end of the message)
+ * flags = 1 blocked, 2 edited, 4 intercept skipped (PACKET-OBSERVE only)
+ * unchanged frame (version 2) = int index, byte direction, byte flags
+ * batch (version 3) = int count, followed by count times: int frame length, frame
+ */
+public class NetworkExtensionCodec {
+
+    private static final int FLAG_BLOCKED = 1;
+    private static final int FLAG_EDITED = 2;
+    // PACKET-OBSERVE of a packet the extension intercepts, while G-Earth doesn't wait for it (observe-only)
+    private static final int FLAG_INTERCEPT_SKIPPED = 4;
+
+    // index + direction + flags
+    private static final int FRAME_HEADER = 4 + 1 + 1;
+    // length + header + frame header
+    private static final int FRAME_OFFSET = 4 + 2 + FRAME_HEADER;
+
+    // builds the complete extension message, the packet bytes are copied only once
+    public static byte[] encode(int headerId, HMessage hMessage) {
+        return encode(headerId, hMessage, false);
+    }
+
+    public static byte[] encode(int headerId, HMessage hMessage, boolean interceptSkipped) {
+        byte[] packet = hMessage.getPacket().toSharedBytes();
+        byte[] message = new byte[FRAME_OFFSET + packet.length];
+
+        writeInt(message, 0, message.length - 4);
+        message[4] = (byte) (headerId >> 8);
+        message[5] = (byte) headerId;
+        writeInt(message, 6, hMessage.getIndex());
+        message[10] = hMessage.getDestination() == HMessage.Direction.TOCLIENT ? (byte)0 : (byte)1;
+        message[11] = (byte) ((hMessage.isBlocked() ? FLAG_BLOCKED : 0) | (hMessage.getPacket().isReplaced() ? FLAG_EDITED : 0) |
+                (interceptSkipped ? FLAG_INTERCEPT_SKIPPED : 0));
+        System.arraycopy(packet, 0, message, FRAME_OFFSET, packet.length);
+
+        return message;
+    }
+
+    // acknowledges a message without sending the packet back
+    public static byte[] encodeUnchanged(int headerId, HMessage hMessage) {
+        byte[] message = new byte[FRAME_OFFSET];
+
+        writeInt(message, 0, message.length - 4);
+        message[4] = (byte) (headerId >> 8);
+        message[5] = (byte) headerId;
+        writeInt(message, 6, hMessage.getIndex());
+        message[10] = hMessage.getDestination() == HMessage.Direction.TOCLIENT ? (byte)0 : (byte)1;
+        message[11] = hMessage.isBlocked() ? (byte)FLAG_BLOCKED : (byte)0;
+
+        return message;
+    }
+
+    public static byte[] encodeBatch(int headerId, List<HMessage> hMessages) {
+        return encodeBatch(headerId, hMessages, null);
+    }
+
+    // messages for which unchanged[i] is set are encoded without their packet bytes
+    public static byte[] encodeBatch(int headerId, List<HMessage> hMessages, boolean[] unchanged) {
+        int size = 4 + 2 + 4;
+        for (int i = 0; i < hMessages.size(); i++) {
+            size += 4 + FRAME_HEADER;
+            if (unchanged == null || !unchanged[i]) {
+                size += hMessages.get(i).getPacket().getBytesLength();
+            }
+        }
+
+        byte[] message = new byte[size];
+        writeInt(message, 0, message.length - 4);
+        message[4] = (byte) (headerId >> 8);
+        message[5] = (byte) headerId;
+        writeInt(message, 6, hMessages.size());
+
+        int offset = 10;
+        for (int i = 0; i < hMessages.size(); i++) {
+            HMessage hMessage = hMessages.get(i);
+            byte[] packet = unchanged == null || !unchanged[i] ? hMessage.getPacket().toSharedBytes() : new byte[0];
+
+            writeInt(message, offset, FRAME_HEADER + packet.length);
+            writeInt(message, offset + 4, hMessage.getIndex());
+            message[offset + 8] = hMessage.getDestination() == HMessage.Direction.TOCLIENT ? (byte)0 : (byte)1;
+            message[offset + 9] = (byte) ((hMessage.isBlocked() ? FLAG_BLOCKED : 0) |
+                    (packet.length > 0 && hMessage.getPacket().isReplaced() ? FLAG_EDITED : 0));
+            System.arraycopy(packet, 0, message, offset + 4 + FRAME_HEADER, packet.length);
+            offset += 4 + FRAME_HEADER + packet.length;
+        }
+
+        return message;
+    }
+
+    // frames in a batch that only acknowledge the message
+    public static boolean isUnchangedFrame(int frameLength) {
+        return frameLength == FRAME_HEADER;
+    }
+
+    public static HMessage.Direction readDirection(HPacket message) {
+        return message.readByte() == 0 ? HMessage.Direction.TOCLIENT : HMessage.Direction.TOSERVER;
+    }
+
+    public static boolean readBlocked(HPacket message) {
+        return (message.readByte() & FLAG_BLOCKED) != 0;
+    }
+
+    // for a PACKET-OBSERVE frame starting at the read index, doesn't move the read index
+    public static boolean isInterceptSkipped(HPacket message) {
+        return (message.readByte(message.getReadIndex() + 4 + 1) & FLAG_INTERCEPT_SKIPPED) != 0;
+    }
+
+    // reads the frame starting at the read index of the message
+    public static HMessage decode(HPacket message) {
+        return decode(message, message.getBytesLength() - message.getReadIndex());
+    }
+
+    // reads a frame of the given length, used for frames in a batch
+    public static HMessage decode(HPacket message, int frameLength) {
+        int end = message.getReadIndex() + frameLength;
+        int index = message.readInteger();
+        HMessage.Direction direction = readDirection(message);
+        byte flags = message.readByte();
+
+        HPacket packet = HPacket.wrap(Arrays.copyOfRange(message.toSharedBytes(), message.getReadIndex(), end));
+        packet.overrideEditedField((flags & FLAG_EDITED) != 0);
+        message.setReadIndex(end);
+
+        HMessage hMessage = new HMessage(packet, direction, index);
+        hMessage.setBlocked((flags & FLAG_BLOCKED) != 0);
+        return hMessage;
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >> 24);
+        bytes[offset + 1] = (byte) (value >> 16);
+        bytes[offset + 2] = (byte) (value >> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+}
@@ -2,6 +2,8 @@ package gearth.services.extensionhandler.extensions.implementations.network;
 
 public class NetworkExtensionInfo {
 
+    public static final int PROTOCOL_VERSION = 3;
+
     /**
      * THE EXTENSION COMMUNCATION PRINCIPLES & PROTOCOL:
      *
@@ -54,6 +56,15 @@ public class NetworkExtensionInfo {
      *      -----------------------------------------------------------------------------------------------------
      *      |  7   |        INIT        |        Empty body, a connection with G-Earth has been set up          |
      *      -----------------------------------------------------------------------------------------------------
+     *      |  8   |   PACKET-OBSERVE   |      Same body as PACKET-INTERCEPT, for packets subscribed to as      |
+     *      |      |                    | observe-only. Don't respond, sent after the packet has been forwarded |
+     *      |      |                    |       (or blocked, see the flags) with the packet as it was sent      |
+     *      |      |                    |  Flag 4 = G-Earth didn't send you a PACKET-INTERCEPT for it, see (5.) |
+     *      |      |                    |       (version 0: appended as a boolean after the long string)        |
+     *      -----------------------------------------------------------------------------------------------------
+     *      |  9   |  INTERCEPT-BATCH   | Several PACKET-INTERCEPTs in one message (version 3), body: int count,|
+     *      |      |                    |       followed by count times: int frame length, frame. See (6.)      |
+     *      -----------------------------------------------------------------------------------------------------
      *      |  99  |     FREE FLOW      |                      extension-specific body                          |
      *      -----------------------------------------------------------------------------------------------------
      *
@@ -70,11 +81,41 @@ public class NetworkExtensionInfo {
      *      |  4   |    SEND-MESSAGE    |   Body: HMessage object. Sends the HPacket wrapped in the HMessage    |
      *      |      |                    |                        to the client/server                           |
      *      -----------------------------------------------------------------------------------------------------
+     *      |  5   |     SUBSCRIBE      |    Body: byte direction (0 = toclient, 1 = toserver), int headerId    |
+     *      |      |                    |      (-1 = all packets), optional boolean observe-only, see (5.)      |
+     *      -----------------------------------------------------------------------------------------------------
+     *      |  6   | UNCHANGED-PACKET*  | Response for PACKET-INTERCEPT (version 2) if the packet wasn't edited,|
+     *      |      |                    |         body: int index, byte direction, byte flags, see (6.)         |
+     *      -----------------------------------------------------------------------------------------------------
+     *      |  7   | MANIPULATED-BATCH* |             Response for INTERCEPT-BATCH, body: int count,            |
+     *      |      |                    |           followed by count times: int frame length, frame.           |
+     *      |      |                    |          Frames without packet bytes are unchanged, see (6.)          |
+     *      -----------------------------------------------------------------------------------------------------
      *      |  99  |     FREE FLOW      |                      extension-specific body                          |
      *      -----------------------------------------------------------------------------------------------------
      *
      * 4.   Your extension will only appear in the extension list once the EXTENSION-INFO has been received by G-Earth
      *
+     * 5.   By default, every packet will be sent to your extension with PACKET-INTERCEPT. If you append an extra boolean "true"
+     *      to the EXTENSION-INFO, G-Earth will only intercept the (direction, headerId) pairs you declared with SUBSCRIBE.
+     *      Subscriptions can be sent at any time after the EXTENSION-INFO and can not be undone.
+     *      Packets subscribed to as observe-only are sent to you with PACKET-OBSERVE instead, G-Earth won't wait for you to
+     *      manipulate them. If you subscribe to a packet both ways, you get a PACKET-INTERCEPT and, once it has been forwarded,
+     *      a PACKET-OBSERVE.
+     *      If you miss the response deadline too often, G-Earth stops waiting for you and sends the packets you intercept
+     *      with PACKET-OBSERVE instead, with flag 4 set. Sending any (non observe-only) SUBSCRIBE again makes G-Earth
+     *      intercept them again.
+     *
+     * 6.   INFO-REQUEST contains an int with the highest protocol version G-Earth supports (no body = version 0). Append the
+     *      protocol version your extension supports to the EXTENSION-INFO (after the boolean from (5.)), both sides will use the lowest one.
+     *      version 0: PACKET-INTERCEPT, PACKET-OBSERVE and MANIPULATED-PACKET contain the stringified HMessage as a long string
+     *      version 1: they contain the HMessage as binary frame instead, see NetworkExtensionCodec:
+     *                 int index, byte direction (0 = toclient, 1 = toserver), byte flags (1 = blocked, 2 = edited), raw packet bytes
+     *      version 2: you may respond to PACKET-INTERCEPT with UNCHANGED-PACKET when you didn't edit the packet (blocking is allowed),
+     *                 which is the same frame without the packet bytes
+     *      version 3: packets that arrive together are sent in a single INTERCEPT-BATCH, respond to it with a single MANIPULATED-BATCH
+     *                 containing a reply for every frame
+     *
      *
      */
 
@@ -87,6 +128,8 @@ public class NetworkExtensionInfo {
         public static final int CONNECTIONSTART = 5;
         public static final int CONNECTIONEND = 6;
         public static final int INIT = 7;
+        public static final int PACKETOBSERVE = 8;
+        public static final int PACKETINTERCEPTBATCH = 9;
     }
 
 
@@ -95,6 +138,9 @@ public class NetworkExtensionInfo {
         public static final int MANIPULATEDPACKET = 2;
         public static final int REQUESTFLAGS = 3;
         public static final int SENDMESSAGE = 4;
+        public static final int INTERCEPTSUBSCRIPTION = 5;
+        public static final int UNCHANGEDPACKET = 6;
+        public static final int MANIPULATEDPACKETBATCH = 7;
         public static final int EXTENSIONCONSOLELOG = 98;
     }
 
@@ -1,5 +1,6 @@
 package gearth.services.extensionhandler.extensions.implementations.network;
 
+import gearth.misc.GEarthThreads;
 import gearth.protocol.HPacket;
 import gearth.services.extensionhandler.extensions.extensionproducers.ExtensionProducer;
 import gearth.services.extensionhandler.extensions.extensionproducers.ExtensionProducerObserver;
@@ -29,16 +30,18 @@ public class NetworkExtensionsProducer implements ExtensionProducer {
         }
 
 
-        new Thread(() -> {
+        GEarthThreads.start("G-Earth extension server", () -> {
             try {
                 while (!serverSocket.isClosed()) {
                     Socket extensionSocket = serverSocket.accept();
                     extensionSocket.setTcpNoDelay(true);
 
-                    new Thread(() -> {
+                    GEarthThreads.start("G-Earth extension connection", () -> {
                         try {
                             synchronized (extensionSocket) {
-                                extensionSocket.getOutputStream().write((new HPacket(NetworkExtensionInfo.OUTGOING_MESSAGES_IDS.INFOREQUEST)).toBytes());
+                                HPacket infoRequest = new HPacket(NetworkExtensionInfo.OUTGOING_MESSAGES_IDS.INFOREQUEST);
+                                infoRequest.appendInt(NetworkExtensionInfo.PROTOCOL_VERSION);
+                                extensionSocket.getOutputStream().write(infoRequest.toBytes());
                             }
 
                             InputStream inputStream = extensionSocket.getInputStream();
@@ -54,7 +57,7 @@ public class NetworkExtensionsProducer implements ExtensionProducer {
                                     amountRead += dIn.read(headerandbody, 4 + amountRead, Math.min(dIn.available(), length - amountRead));
                                 }
 
-                                HPacket packet = new HPacket(headerandbody);
+                                HPacket packet = HPacket.wrap(headerandbody);
                                 packet.fixLength();
 
                                 if (packet.headerId() == NetworkExtensionInfo.INCOMING_MESSAGES_IDS.EXTENSIONINFO) {
@@ -75,10 +78,10 @@ public class NetworkExtensionsProducer implements ExtensionProducer {
                             }
 
                         } catch (IOException ignored) {}
-                    }).start();
+                    });
                 }
             } catch (IOException e) {e.printStackTrace();}
-        }).start();
+        });
     }
 
     private boolean createServer(int port) {
@@ -1,6 +1,7 @@
 package gearth.services.extensionhandler.extensions.implementations.network.executer;
 
 import gearth.Main;
+import gearth.misc.GEarthThreads;
 import gearth.services.extensionhandler.extensions.implementations.network.authentication.Authenticator;
 
 import java.io.BufferedReader;
@@ -108,7 +109,7 @@ public class NormalExtensionRunner implements ExtensionRunner {
                 BufferedReader stdInput = new BufferedReader(new
                         InputStreamReader(proc.getInputStream()));
 
-                new Thread(() -> {
+                GEarthThreads.start("G-Earth extension output", () -> {
                     try {
                         String line;
                         while((line = stdInput.readLine()) != null) {
@@ -119,12 +120,12 @@ public class NormalExtensionRunner implements ExtensionRunner {
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
-                }).start();
+                });
 
                 BufferedReader stdError = new BufferedReader(new
                         InputStreamReader(proc.getErrorStream()));
 
-                new Thread(() -> {
+                GEarthThreads.start("G-Earth extension output", () -> {
                     try {
                         String line;
                         while((line = stdError.readLine()) != null) {
@@ -135,7 +136,7 @@ public class NormalExtensionRunner implements ExtensionRunner {
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
-                }).start();
+                });
 
             }
         } catch (IOException e) {
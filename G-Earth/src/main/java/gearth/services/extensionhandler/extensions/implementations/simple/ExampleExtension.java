@@ -75,6 +75,12 @@ public class ExampleExtension extends GEarthExtension {
         sendManipulatedPacket(hMessage);
     }
 
+    @Override
+    public void packetObserve(HMessage hMessage) {
+        // called for observed packets once they have been forwarded (or blocked), don't respond to these
+        // the packet has already been forwarded, so there's no point in manipulating it
+    }
+
     @Override
     public void provideFlags(String[] flags) {
         // If you call "requestFlags()", this function will provide you the execution flags for G-Earth
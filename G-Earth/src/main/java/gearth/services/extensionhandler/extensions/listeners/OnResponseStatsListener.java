@@ -0,0 +1,5 @@
+package gearth.services.extensionhandler.extensions.listeners;
+
+public interface OnResponseStatsListener {
+    void onChange();
+}
@@ -1,5 +1,6 @@
 package gearth.services.scheduler;
 
+import gearth.misc.GEarthThreads;
 import gearth.protocol.HConnection;
 import gearth.protocol.HMessage;
 
@@ -13,7 +14,7 @@ public class Scheduler<T extends ScheduleItem> {
     private List<T> scheduleItems = new ArrayList<>();
 
     public Scheduler(HConnection connection) {
-        new Thread(() -> {
+        GEarthThreads.start("G-Earth scheduler", () -> {
             long t = System.currentTimeMillis();
             long changed = 1;
 
@@ -52,7 +53,7 @@ public class Scheduler<T extends ScheduleItem> {
                 changed = newT - t;
                 t = newT;
             }
-        }).start();
+        });
     }
 
     public int size() {
@@ -164,6 +164,14 @@ public class ExtensionItemContainer extends GridPane {
         onExit = event -> item.getRemoveClickObservable().fireEvent();
         onClick = event -> item.getClickedObservable().fireEvent();
 
+        updateResponseStats();
+        GEarthExtension extension = item;
+        item.getResponseStatsObservable().addListener(() -> Platform.runLater(() -> {
+            if (item == extension) {
+                updateResponseStats();
+            }
+        }));
+
         exitButton.addEventHandler(MouseEvent.MOUSE_CLICKED, onExit);
         clickButton.addEventHandler(MouseEvent.MOUSE_CLICKED, onClick);
 
@@ -181,6 +189,26 @@ public class ExtensionItemContainer extends GridPane {
         }));
     }
 
+    private void updateResponseStats() {
+        if (!item.isDegraded() && item.getLateResponses() == 0) {
+            titleLabel.setText(item.getTitle());
+            titleLabel.setTextFill(Paint.valueOf("#000000"));
+            titleLabel.setTooltip(null);
+            return;
+        }
+
+        String stats = "Missed response deadlines: " + item.getMissedDeadlines() + "\n" +
+                "Late responses: " + item.getLateResponses();
+        if (item.isObserveOnly()) {
+            stats += "\nToo slow, this extension only observes packets now\n" +
+                    "It intercepts again once it subscribes to a packet again";
+        }
+
+        titleLabel.setText(item.isObserveOnly() ? item.getTitle() + " (observe-only)" : item.getTitle());
+        titleLabel.setTextFill(Paint.valueOf(item.isObserveOnly() ? "#cc0000" : "#cc7a00"));
+        titleLabel.setTooltip(new Tooltip(stats));
+    }
+
     void hasReconnected(GEarthExtension extension) {
         item = extension;
         initExtension();